@@ -0,0 +1,273 @@
+package com.att.m2x.java.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates an M2XWriter for every class annotated with com.att.m2x.java.M2XWritable, and lists
+ * them in META-INF/services/com.att.m2x.java.M2XWriter.
+ *
+ * The generated writers serialize the same members as the reflective serialization of the client:
+ * public instance fields to query strings, public instance getters ("getX" and "isX") to JSON.
+ */
+@SupportedAnnotationTypes(M2XWriterProcessor.ANNOTATION)
+public final class M2XWriterProcessor extends AbstractProcessor
+{
+	static final String ANNOTATION = "com.att.m2x.java.M2XWritable";
+	static final String WRITER = "com.att.m2x.java.M2XWriter";
+	static final String WRITERS = "com.att.m2x.java.M2XWriters";
+	static final String WRITER_SUFFIX = "_M2XWriter";
+	static final String SERVICES = "META-INF/services/" + WRITER;
+
+	private final Set<String> generated = new TreeSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round)
+	{
+		if (round.processingOver())
+		{
+			if (!this.generated.isEmpty())
+				writeServices();
+			return false;
+		}
+
+		for (TypeElement annotation : annotations)
+			for (Element element : round.getElementsAnnotatedWith(annotation))
+			{
+				if (element.getKind() != ElementKind.CLASS)
+					error(element, "@M2XWritable is only supported on classes");
+				else if (!isAccessible((TypeElement)element))
+					error(element, "@M2XWritable classes and their enclosing classes must not be private");
+				else
+					generate((TypeElement)element);
+			}
+		return true;
+	}
+
+	private static boolean isAccessible(TypeElement type)
+	{
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement())
+			if (e.getModifiers().contains(Modifier.PRIVATE))
+				return false;
+		return true;
+	}
+
+	private void generate(TypeElement type)
+	{
+		PackageElement pkg = this.processingEnv.getElementUtils().getPackageOf(type);
+		String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+		String binaryName = this.processingEnv.getElementUtils().getBinaryName(type).toString();
+		String simpleName = (packageName.length() == 0 ? binaryName : binaryName.substring(packageName.length() + 1))
+			.replace('$', '_') + WRITER_SUFFIX;
+		String typeName = this.processingEnv.getTypeUtils().erasure(type.asType()).toString();
+
+		try
+		{
+			JavaFileObject file = this.processingEnv.getFiler().createSourceFile(
+				packageName.length() == 0 ? simpleName : packageName + "." + simpleName, type);
+			PrintWriter out = new PrintWriter(file.openWriter());
+			try
+			{
+				writeSource(out, packageName, simpleName, typeName, type);
+			}
+			finally
+			{
+				out.close();
+			}
+			this.generated.add(packageName.length() == 0 ? simpleName : packageName + "." + simpleName);
+		}
+		catch (IOException ex)
+		{
+			error(type, "Could not write the M2XWriter: " + ex.getMessage());
+		}
+	}
+
+	private void writeSource(PrintWriter out, String packageName, String simpleName, String typeName, TypeElement type)
+	{
+		if (packageName.length() > 0)
+		{
+			out.println("package " + packageName + ";");
+			out.println();
+		}
+		out.println("/**");
+		out.println(" * Generated by " + M2XWriterProcessor.class.getName() + ", do not edit");
+		out.println(" */");
+		out.println("public final class " + simpleName + " implements " + WRITER + "<" + typeName + ">");
+		out.println("{");
+		out.println("\tpublic Class<" + typeName + "> type()");
+		out.println("\t{");
+		out.println("\t\treturn " + typeName + ".class;");
+		out.println("\t}");
+		out.println();
+		out.println("\tpublic void writeQuery(" + typeName + " obj, StringBuilder sb)");
+		out.println("\t{");
+		for (VariableElement field : queryFields(type))
+		{
+			String name = field.getSimpleName().toString();
+			String value = field.asType().getKind().isPrimitive()
+				? "String.valueOf(obj." + name + ")"
+				: "obj." + name;
+			out.println("\t\t" + WRITERS + ".appendParameter(sb, \"" + name + "\", " + value + ");");
+		}
+		out.println("\t}");
+		out.println();
+		out.println("\tpublic void writeJson(" + typeName + " obj, org.json.JSONWriter writer)");
+		out.println("\t{");
+		out.println("\t\twriter.object();");
+		for (Map.Entry<String, ExecutableElement> getter : jsonGetters(type).entrySet())
+		{
+			String key = getter.getKey();
+			String call = "obj." + getter.getValue().getSimpleName() + "()";
+			switch (getter.getValue().getReturnType().getKind())
+			{
+				case BOOLEAN:
+				case INT:
+				case LONG:
+				case SHORT:
+				case BYTE:
+				case DOUBLE:
+					out.println("\t\twriter.key(\"" + key + "\").value(" + call + ");");
+					break;
+				default:
+					out.println("\t\t" + WRITERS + ".writeMember(writer, \"" + key + "\", " + call + ");");
+			}
+		}
+		out.println("\t\twriter.endObject();");
+		out.println("\t}");
+		out.println("}");
+	}
+
+	/**
+	 * The public instance fields, including inherited ones, as Class.getFields()
+	 */
+	private List<VariableElement> queryFields(TypeElement type)
+	{
+		List<VariableElement> fields = new ArrayList<VariableElement>();
+		for (VariableElement field : ElementFilter.fieldsIn(this.processingEnv.getElementUtils().getAllMembers(type)))
+			if (field.getModifiers().contains(Modifier.PUBLIC) && !field.getModifiers().contains(Modifier.STATIC))
+				fields.add(field);
+		return fields;
+	}
+
+	/**
+	 * The public instance getters by JSON key, named as by org.json.JSONObject's bean constructor
+	 */
+	private Map<String, ExecutableElement> jsonGetters(TypeElement type)
+	{
+		Map<String, ExecutableElement> getters = new LinkedHashMap<String, ExecutableElement>();
+		for (ExecutableElement method : ElementFilter.methodsIn(this.processingEnv.getElementUtils().getAllMembers(type)))
+		{
+			if (!method.getModifiers().contains(Modifier.PUBLIC) || method.getModifiers().contains(Modifier.STATIC)
+				|| !method.getParameters().isEmpty() || !method.getTypeParameters().isEmpty())
+				continue;
+			TypeMirror returnType = method.getReturnType();
+			if (returnType.getKind() == TypeKind.VOID)
+				continue;
+
+			String name = method.getSimpleName().toString();
+			String key;
+			if (name.startsWith("get") && !name.equals("getClass") && !name.equals("getDeclaringClass"))
+				key = name.substring(3);
+			else if (name.startsWith("is"))
+				key = name.substring(2);
+			else
+				continue;
+			if (key.length() == 0 || !Character.isUpperCase(key.charAt(0)))
+				continue;
+
+			if (key.length() == 1)
+				key = key.toLowerCase();
+			else if (!Character.isUpperCase(key.charAt(1)))
+				key = key.substring(0, 1).toLowerCase() + key.substring(1);
+			if (!getters.containsKey(key))
+				getters.put(key, method);
+		}
+		return getters;
+	}
+
+	/**
+	 * Lists the generated writers, keeping those listed by earlier (incremental) compilations
+	 */
+	private void writeServices()
+	{
+		Set<String> writers = new TreeSet<String>(this.generated);
+		try
+		{
+			FileObject existing = this.processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICES);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), "UTF-8"));
+			try
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+					if (line.trim().length() > 0)
+						writers.add(line.trim());
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			// first compilation
+		}
+
+		try
+		{
+			FileObject services = this.processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICES);
+			Writer out = services.openWriter();
+			try
+			{
+				for (String writer : writers)
+					out.write(writer + "\n");
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + SERVICES + ": " + ex.getMessage());
+		}
+	}
+
+	private void error(Element element, String message)
+	{
+		this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
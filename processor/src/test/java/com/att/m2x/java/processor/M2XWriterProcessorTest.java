@@ -0,0 +1,169 @@
+package com.att.m2x.java.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.att.m2x.java.M2XClient;
+import com.att.m2x.java.M2XWriter;
+import com.att.m2x.java.M2XWriters;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class M2XWriterProcessorTest
+{
+	private static final String QUERY_SOURCE =
+		"package sample;\n" +
+		"@com.att.m2x.java.M2XWritable\n" +
+		"public class Query extends Base\n" +
+		"{\n" +
+		"	public static final String CONSTANT = \"c\";\n" +
+		"	public String start = \"2015-01-01T00:00:00.000Z\";\n" +
+		"	public int limit = 10;\n" +
+		"	public String name = \"a b&c\";\n" +
+		"	public String end = null;\n" +
+		"	public Double min = null;\n" +
+		"	private String hidden = \"x\";\n" +
+		"}\n";
+	private static final String BASE_SOURCE =
+		"package sample;\n" +
+		"public class Base\n" +
+		"{\n" +
+		"	public boolean inherited = true;\n" +
+		"}\n";
+	private static final String VALUE_SOURCE =
+		"package sample;\n" +
+		"public class Outer\n" +
+		"{\n" +
+		"	@com.att.m2x.java.M2XWritable\n" +
+		"	public static class Value\n" +
+		"	{\n" +
+		"		public String getTimestamp() { return \"2015-01-01T00:00:00.000Z\"; }\n" +
+		"		public double getValue() { return 21.5; }\n" +
+		"		public float getRatio() { return 0.1f; }\n" +
+		"		public boolean isValid() { return true; }\n" +
+		"		public String getMissing() { return null; }\n" +
+		"		public String getURL() { return \"u\"; }\n" +
+		"		public int[] getCounts() { return new int[] { 1, 2 }; }\n" +
+		"		public Location getLocation() { return new Location(); }\n" +
+		"		public java.util.Date getDate() { return new java.util.Date(0); }\n" +
+		"		public String get() { return \"g\"; }\n" +
+		"		public String getter(int i) { return \"p\"; }\n" +
+		"	}\n" +
+		"\n" +
+		"	@com.att.m2x.java.M2XWritable\n" +
+		"	public static class Location\n" +
+		"	{\n" +
+		"		public double getLatitude() { return 1.5; }\n" +
+		"		public String getName() { return \"home\"; }\n" +
+		"	}\n" +
+		"}\n";
+
+	private static File output;
+	private static ClassLoader loader;
+
+	@BeforeClass
+	public static void compile() throws IOException
+	{
+		output = File.createTempFile("m2x-processor", "");
+		output.delete();
+		output.mkdirs();
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null);
+		files.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singleton(output));
+		files.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singleton(output));
+		List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"));
+		JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics, options, null,
+			Arrays.asList(source("sample.Query", QUERY_SOURCE), source("sample.Base", BASE_SOURCE), source("sample.Outer", VALUE_SOURCE)));
+		task.setProcessors(Collections.singleton(new M2XWriterProcessor()));
+		boolean success = task.call();
+		files.close();
+		assertThat(diagnostics.getDiagnostics().toString(), success, is(true));
+
+		loader = new URLClassLoader(new URL[] { output.toURI().toURL() }, M2XWriterProcessorTest.class.getClassLoader());
+		M2XWriters.registerAll(loader);
+	}
+
+	@AfterClass
+	public static void cleanup()
+	{
+		delete(output);
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	private static JavaFileObject source(String name, final String code)
+	{
+		return new SimpleJavaFileObject(URI.create("string:///" + name.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE)
+		{
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) { return code; }
+		};
+	}
+
+	@Test
+	public void servicesTest() throws IOException
+	{
+		Scanner scanner = new Scanner(new File(output, M2XWriterProcessor.SERVICES), "UTF-8").useDelimiter("\\A");
+		String services = scanner.next();
+		scanner.close();
+		assertThat(services, is("sample.Outer_Location_M2XWriter\nsample.Outer_Value_M2XWriter\nsample.Query_M2XWriter\n"));
+	}
+
+	@Test
+	public void queryTest() throws Exception
+	{
+		Class<?> type = loader.loadClass("sample.Query");
+		M2XWriter<?> writer = M2XWriters.writer(type);
+		assertThat(writer, is(notNullValue()));
+		assertThat(writer.getClass().getName(), is("sample.Query_M2XWriter"));
+
+		String query = M2XClient.objectToQuery(type.getDeclaredConstructor().newInstance());
+		assertThat(Arrays.asList(query.split("&")), containsInAnyOrder(
+			"start=2015-01-01T00%3A00%3A00.000Z", "limit=10", "name=a+b%26c", "end=", "min=", "inherited=true"));
+	}
+
+	@Test
+	public void jsonTest() throws Exception
+	{
+		Class<?> type = loader.loadClass("sample.Outer$Value");
+		assertThat(M2XWriters.writer(type), is(notNullValue()));
+
+		Object value = type.getDeclaredConstructor().newInstance();
+		JSONObject json = new JSONObject(M2XClient.jsonSerialize(value));
+		JSONObject reflective = new JSONObject(value);
+		assertThat(json.length(), is(reflective.length()));
+		for (String key : JSONObject.getNames(reflective))
+			assertThat(key, json.get(key).toString(), is(reflective.get(key).toString()));
+		assertThat(json.getJSONObject("location").getString("name"), is("home"));
+	}
+}
@@ -0,0 +1,88 @@
+package com.att.m2x.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory connection serving a fixed response, to measure response handling without network
+ */
+final class BenchmarkConnection extends HttpURLConnection
+{
+	private static final URL URL;
+
+	static
+	{
+		try
+		{
+			URL = new URL("http://localhost/v2/devices/benchmark/streams/benchmark/values");
+		}
+		catch (MalformedURLException ex)
+		{
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	private final byte[] body;
+
+	BenchmarkConnection(byte[] body)
+	{
+		super(URL);
+		this.body = body;
+		this.responseCode = 200;
+	}
+
+	public void connect()
+	{
+		this.connected = true;
+	}
+
+	public void disconnect()
+	{
+	}
+
+	public boolean usingProxy()
+	{
+		return false;
+	}
+
+	public int getResponseCode()
+	{
+		return this.responseCode;
+	}
+
+	public Map<String, List<String>> getHeaderFields()
+	{
+		return Collections.emptyMap();
+	}
+
+	public InputStream getInputStream()
+	{
+		return new ByteArrayInputStream(this.body);
+	}
+
+	public InputStream getErrorStream()
+	{
+		return getInputStream();
+	}
+
+	public OutputStream getOutputStream()
+	{
+		return new OutputStream()
+		{
+			public void write(int b)
+			{
+			}
+
+			public void write(byte[] buffer, int offset, int length)
+			{
+			}
+		};
+	}
+}
@@ -0,0 +1,59 @@
+package com.att.m2x.java;
+
+import java.util.Date;
+
+/**
+ * Realistic request and response bodies of a given number of values
+ */
+final class BenchmarkPayloads
+{
+	static final long START = 1420070400000L;
+
+	private BenchmarkPayloads()
+	{
+	}
+
+	/**
+	 * A values response as returned by the stream values endpoint.
+	 */
+	static String valuesResponse(int count)
+	{
+		StringBuilder sb = new StringBuilder(count * 56 + 128);
+		sb.append("{\"limit\":").append(count)
+			.append(",\"end\":\"2015-01-01T00:00:00.000Z\",\"values\":[");
+		for (int i = 0; i < count; i++)
+		{
+			if (i > 0)
+				sb.append(',');
+			sb.append("{\"timestamp\":\"")
+				.append(M2XClient.dateTimeToString(new Date(START + i * 1000L)))
+				.append("\",\"value\":").append(20 + (i % 100) / 10.0).append('}');
+		}
+		return sb.append("]}").toString();
+	}
+
+	/**
+	 * A postUpdates body with the given number of values spread over four streams.
+	 */
+	static String updatesBody(int count)
+	{
+		StringBuilder sb = new StringBuilder(count * 56 + 128);
+		sb.append("{\"values\":{");
+		for (int stream = 0; stream < 4; stream++)
+		{
+			if (stream > 0)
+				sb.append(',');
+			sb.append("\"stream").append(stream).append("\":[");
+			for (int i = stream; i < count; i += 4)
+			{
+				if (i > stream)
+					sb.append(',');
+				sb.append("{\"timestamp\":\"")
+					.append(M2XClient.dateTimeToString(new Date(START + i * 1000L)))
+					.append("\",\"value\":").append(i % 100).append('}');
+			}
+			sb.append(']');
+		}
+		return sb.append("}}").toString();
+	}
+}
@@ -0,0 +1,122 @@
+package com.att.m2x.java;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures end-to-end client throughput against an in-process {@link M2XStubServer}.
+ *
+ * Every thread runs a mix of stream value writes, device updates and value reads for a fixed
+ * duration; requests/sec, latency percentiles and the allocation rate of the client threads are
+ * reported per thread count.
+ *
+ * <pre>
+ *	mvn -P benchmark test-compile exec:exec -Djmh.main=com.att.m2x.java.M2XLoadDriver -Djmh.args="1,4,16 10 2"
+ * </pre>
+ *
+ * Arguments: comma separated thread counts (default 1,2,4,8,16), seconds per run (default 10),
+ * stub latency in milliseconds (default 0), stub error rate (default 0).
+ */
+public final class M2XLoadDriver
+{
+	private M2XLoadDriver()
+	{
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String[] threadCounts = (args.length > 0 ? args[0] : "1,2,4,8,16").split(",");
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+
+		M2XStubServer stub = new M2XStubServer(64).start();
+		stub.latency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		stub.errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+		try
+		{
+			System.out.println("threads   req/s      p50(ms)  p90(ms)  p99(ms)  max(ms)  errors  alloc(MB/s)");
+			for (String threadCount : threadCounts)
+				run(stub, Integer.parseInt(threadCount.trim()), seconds);
+		}
+		finally
+		{
+			stub.stop();
+		}
+	}
+
+	private static void run(M2XStubServer stub, int threads, long seconds) throws Exception
+	{
+		final M2XClient client = new M2XClient("0123456789abcdef0123456789abcdef", stub.endpoint());
+		final M2XHistogram latencies = new M2XHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong allocated = new AtomicLong();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		final String deviceId = client.createDevice("{\"name\":\"load\",\"visibility\":\"private\"}").json().getString("id");
+		client.device(deviceId).stream("load").update("{\"type\":\"numeric\"}");
+
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++)
+		{
+			new Thread(new Runnable()
+			{
+				public void run()
+				{
+					ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+					long before = allocatedBytes(bean);
+					M2XDevice device = client.device(deviceId);
+					M2XStream stream = device.stream("load");
+					long i = 0;
+					while (System.nanoTime() < deadline)
+					{
+						long requestStart = System.nanoTime();
+						try
+						{
+							M2XResponse response;
+							switch ((int)(i++ % 3))
+							{
+								case 0:
+									response = stream.updateValue("{\"value\":" + i + "}");
+									break;
+								case 1:
+									response = device.postUpdate("{\"timestamp\":\"" + M2XClient.dateTimeToString(new Date())
+										+ "\",\"values\":{\"load\":" + i + "}}");
+									break;
+								default:
+									response = stream.values("limit=10", null);
+							}
+							if (response.error())
+								errors.incrementAndGet();
+						}
+						catch (Exception ex)
+						{
+							errors.incrementAndGet();
+						}
+						latencies.record(System.nanoTime() - requestStart);
+					}
+					allocated.addAndGet(allocatedBytes(bean) - before);
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format("%-9d %-10.0f %-8.2f %-8.2f %-8.2f %-8.2f %-7d %.1f",
+			threads, latencies.count() / elapsed,
+			latencies.percentile(50) / 1e6, latencies.percentile(90) / 1e6,
+			latencies.percentile(99) / 1e6, latencies.max() / 1e6,
+			errors.get(), allocated.get() / elapsed / (1024 * 1024)));
+	}
+
+	private static long allocatedBytes(ThreadMXBean bean)
+	{
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+}
@@ -0,0 +1,83 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures sending request bodies, reading response bodies and parsing them, from a single
+ * value up to 100k values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class M2XResponseBenchmark
+{
+	@Param({ "1", "100", "10000", "100000" })
+	public int values;
+
+	private byte[] responseBody;
+	private String updatesBody;
+	private M2XResponse response;
+	private M2XClient client;
+	private M2XClient compressingClient;
+	private M2XClient bytesClient;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		this.responseBody = BenchmarkPayloads.valuesResponse(this.values).getBytes("UTF-8");
+		this.updatesBody = BenchmarkPayloads.updatesBody(this.values);
+		this.client = new M2XClient("benchmark");
+		this.compressingClient = new M2XClient("benchmark");
+		this.compressingClient.compressionThreshold = 0;
+		this.bytesClient = new M2XClient("benchmark");
+		this.bytesClient.decodeResponses = false;
+		this.response = new M2XResponse(new BenchmarkConnection(this.responseBody), this.client, null, null);
+	}
+
+	@Benchmark
+	public M2XResponse write() throws IOException
+	{
+		return new M2XResponse(new BenchmarkConnection(new byte[0]), this.client, this.updatesBody, null);
+	}
+
+	@Benchmark
+	public M2XResponse writeCompressed() throws IOException
+	{
+		return new M2XResponse(new BenchmarkConnection(new byte[0]), this.compressingClient, this.updatesBody, null);
+	}
+
+	@Benchmark
+	public M2XResponse read() throws IOException
+	{
+		return new M2XResponse(new BenchmarkConnection(this.responseBody), this.client, null, null);
+	}
+
+	@Benchmark
+	public M2XResponse readBytes() throws IOException
+	{
+		return new M2XResponse(new BenchmarkConnection(this.responseBody), this.bytesClient, null, null);
+	}
+
+	@Benchmark
+	public JSONObject parse()
+	{
+		return new JSONObject(this.response.raw());
+	}
+}
@@ -0,0 +1,134 @@
+package com.att.m2x.java;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures URL building and request serialization.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class M2XSerializationBenchmark
+{
+	public static class ValuesQuery
+	{
+		public String start = "2015-01-01T00:00:00.000Z";
+		public String end = "2015-01-02T00:00:00.000Z";
+		public int limit = 1000;
+		public String min = "10";
+	}
+
+	public static class StreamValue
+	{
+		private final Date timestamp;
+		private final double value;
+
+		StreamValue(Date timestamp, double value)
+		{
+			this.timestamp = timestamp;
+			this.value = value;
+		}
+
+		public String getTimestamp() { return M2XClient.dateTimeToString(this.timestamp); }
+		public double getValue() { return this.value; }
+	}
+
+	public static class StreamValues
+	{
+		private final StreamValue[] values;
+
+		StreamValues(int count)
+		{
+			this.values = new StreamValue[count];
+			for (int i = 0; i < count; i++)
+				this.values[i] = new StreamValue(new Date(BenchmarkPayloads.START + i * 1000L), i);
+		}
+
+		public StreamValue[] getValues() { return this.values; }
+	}
+
+	private M2XClient client;
+	private M2XDevice device;
+	private ValuesQuery query;
+	private Map<String, String> queryMap;
+	private Map<String, Object> update;
+	private StreamValues values;
+	private Date date;
+
+	@Setup
+	public void setup()
+	{
+		this.client = new M2XClient("0123456789abcdef0123456789abcdef");
+		this.device = this.client.device("0123456789abcdef0123456789abcdef");
+		this.query = new ValuesQuery();
+		this.queryMap = new LinkedHashMap<String, String>();
+		this.queryMap.put("start", "2015-01-01T00:00:00.000Z");
+		this.queryMap.put("end", "2015-01-02T00:00:00.000Z");
+		this.queryMap.put("limit", "1000");
+		this.update = new HashMap<String, Object>();
+		this.update.put("timestamp", "2015-01-01T00:00:00.000Z");
+		this.update.put("value", 21.5);
+		this.values = new StreamValues(100);
+		this.date = new Date(BenchmarkPayloads.START);
+	}
+
+	@Benchmark
+	public String buildUrl()
+	{
+		return this.client.buildUrl(this.device.stream("temperature").buildPath("/values"), "limit=1000&start=2015-01-01T00:00:00.000Z");
+	}
+
+	@Benchmark
+	public String objectToQuery()
+	{
+		return M2XClient.objectToQuery(this.query);
+	}
+
+	@Benchmark
+	public String mapToQuery()
+	{
+		return M2XClient.mapToQuery(this.queryMap);
+	}
+
+	@Benchmark
+	public String queryBuilder()
+	{
+		return new M2XQuery().start(this.date).end(this.date.getTime() + 86400000L).limit(1000).toString();
+	}
+
+	@Benchmark
+	public String jsonSerializeMap()
+	{
+		return M2XClient.jsonSerialize(this.update);
+	}
+
+	@Benchmark
+	public String jsonSerializeObject()
+	{
+		return M2XClient.jsonSerialize(this.values);
+	}
+
+	@Benchmark
+	public String dateTimeToString()
+	{
+		return M2XClient.dateTimeToString(this.date);
+	}
+}
@@ -0,0 +1,81 @@
+package com.att.m2x.java;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares M2XTimestamps with the SimpleDateFormat based formatting it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class M2XTimestampBenchmark
+{
+	private long millis;
+	private String timestamp;
+	private char[] buffer;
+
+	@Setup
+	public void setup()
+	{
+		this.millis = BenchmarkPayloads.START + 123;
+		this.timestamp = M2XTimestamps.format(this.millis);
+		this.buffer = new char[M2XTimestamps.LENGTH];
+	}
+
+	private static DateFormat simpleDateFormat()
+	{
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return df;
+	}
+
+	@Benchmark
+	public String formatSimpleDateFormat()
+	{
+		return simpleDateFormat().format(new Date(this.millis));
+	}
+
+	@Benchmark
+	public String format()
+	{
+		return M2XTimestamps.format(this.millis);
+	}
+
+	@Benchmark
+	public char[] formatIntoBuffer()
+	{
+		M2XTimestamps.format(this.millis, this.buffer, 0);
+		return this.buffer;
+	}
+
+	@Benchmark
+	public long parseSimpleDateFormat() throws ParseException
+	{
+		return simpleDateFormat().parse(this.timestamp).getTime();
+	}
+
+	@Benchmark
+	public long parse()
+	{
+		return M2XTimestamps.parse(this.timestamp);
+	}
+}
@@ -0,0 +1,253 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+/**
+ * Applies the same metadata change to many devices, distributions or collections.
+ *
+ * Every field of the patch is written with updateMetadataField, with a bounded number of requests
+ * in flight. The values written (or seeded with {@link #remember(M2XClassWithMetadata, JSONObject)})
+ * are cached per entity, and fields whose cached value already matches the patch are skipped.
+ *
+ * The cache only knows the values written or remembered by this instance, so the first update of
+ * an entity writes every field of the patch, unless {@link #fetchUnknown} is enabled: the metadata
+ * of entities not cached yet is then read first, which pays off when many of them already match.
+ */
+public final class M2XBulkMetadata
+{
+	/**
+	 * Result of a bulk metadata update.
+	 */
+	public static final class Report
+	{
+		/**
+		 * The number of entities updated
+		 */
+		public final int updated;
+		/**
+		 * The number of entities skipped because their cached metadata already matched
+		 */
+		public final int skipped;
+		/**
+		 * The entities which could not be updated by their path, with the HTTP status of the
+		 * failed request (0 for I/O errors)
+		 */
+		public final Map<String, Integer> failures;
+
+		Report(int updated, int skipped, Map<String, Integer> failures)
+		{
+			this.updated = updated;
+			this.skipped = skipped;
+			this.failures = Collections.unmodifiableMap(failures);
+		}
+
+		/**
+		 * Returns whether all entities were updated or skipped.
+		 *
+		 * @return true if no update failed
+		 */
+		public boolean success() { return this.failures.isEmpty(); }
+	}
+
+	/**
+	 * Whether the metadata of an entity not cached yet is read before updating it, so fields
+	 * already matching the patch are skipped from the first update on
+	 */
+	public volatile boolean fetchUnknown = false;
+
+	private final int concurrency;
+	private final ConcurrentHashMap<String, Map<String, String>> cache = new ConcurrentHashMap<String, Map<String, String>>();
+
+	public M2XBulkMetadata(int concurrency)
+	{
+		assert concurrency > 0;
+
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Applies the patch to all devices of the given set.
+	 *
+	 * @param client the client
+	 * @param targets the devices to update
+	 * @param patch the metadata fields to set
+	 * @return the report of the update
+	 * @throws IOException if the targets could not be resolved
+	 * @throws InterruptedException if interrupted while waiting for the requests
+	 */
+	public Report apply(M2XClient client, M2XDeviceSet targets, Map<String, Object> patch)
+		throws IOException, InterruptedException
+	{
+		List<M2XDevice> devices = new ArrayList<M2XDevice>();
+		for (String id : targets.resolve())
+			devices.add(client.device(id));
+		return apply(devices, patch);
+	}
+
+	/**
+	 * Applies the patch to all given entities.
+	 *
+	 * @param entities the devices, distributions or collections to update
+	 * @param patch the metadata fields to set
+	 * @return the report of the update
+	 * @throws InterruptedException if interrupted while waiting for the requests
+	 */
+	public Report apply(Iterable<? extends M2XClassWithMetadata> entities, Map<String, Object> patch)
+		throws InterruptedException
+	{
+		final Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, Object> entry : patch.entrySet())
+			fields.put(entry.getKey(), JSONObject.valueToString(entry.getValue()));
+
+		final Progress progress = new Progress();
+		M2XWorkers workers = new M2XWorkers("m2x-bulk-metadata", this.concurrency);
+		try
+		{
+			for (final M2XClassWithMetadata entity : entities)
+			{
+				workers.submit(new Runnable()
+				{
+					public void run() { update(entity, fields, progress); }
+				});
+			}
+			workers.await();
+		}
+		finally
+		{
+			workers.shutdown();
+		}
+		synchronized (progress)
+		{
+			return new Report(progress.updated, progress.skipped, progress.failures);
+		}
+	}
+
+	/**
+	 * Seeds the cache with the metadata of an entity, e.g. from a {@link M2XClassWithMetadata#metadata()} response.
+	 *
+	 * @param entity the entity
+	 * @param metadata the current metadata of the entity
+	 */
+	public void remember(M2XClassWithMetadata entity, JSONObject metadata)
+	{
+		Map<String, String> known = cached(entity);
+		for (Iterator<?> it = metadata.keys(); it.hasNext(); )
+		{
+			String field = (String)it.next();
+			known.put(field, JSONObject.valueToString(metadata.get(field)));
+		}
+	}
+
+	/**
+	 * Forgets the cached metadata of all entities.
+	 */
+	public void clear()
+	{
+		this.cache.clear();
+	}
+
+	private Map<String, String> cached(M2XClassWithMetadata entity)
+	{
+		String path = entity.buildPath(null);
+		Map<String, String> known = this.cache.get(path);
+		if (known == null)
+		{
+			known = new ConcurrentHashMap<String, String>();
+			Map<String, String> existing = this.cache.putIfAbsent(path, known);
+			if (existing != null)
+				known = existing;
+		}
+		return known;
+	}
+
+	private void update(M2XClassWithMetadata entity, Map<String, String> fields, Progress progress)
+	{
+		try
+		{
+			updateFields(entity, fields, progress);
+		}
+		catch (RuntimeException ex)
+		{
+			// e.g. an unexpected metadata payload
+			progress.failed(entity.buildPath(null), 0);
+		}
+	}
+
+	private void updateFields(M2XClassWithMetadata entity, Map<String, String> fields, Progress progress)
+	{
+		boolean unknown = !this.cache.containsKey(entity.buildPath(null));
+		Map<String, String> known = cached(entity);
+		if (unknown && this.fetchUnknown)
+			fetch(entity);
+		boolean changed = false;
+		for (Map.Entry<String, String> field : fields.entrySet())
+		{
+			if (field.getValue().equals(known.get(field.getKey())))
+				continue;
+			changed = true;
+
+			int status;
+			try
+			{
+				M2XResponse response = entity.updateMetadataField(field.getKey(), "{\"value\":" + field.getValue() + "}");
+				status = response.success() ? 0 : response.status;
+			}
+			catch (IOException ex)
+			{
+				status = -1;
+			}
+			if (status != 0)
+			{
+				known.remove(field.getKey());
+				progress.failed(entity.buildPath(null), Math.max(status, 0));
+				return;
+			}
+			known.put(field.getKey(), field.getValue());
+		}
+		progress.done(changed);
+	}
+
+	private void fetch(M2XClassWithMetadata entity)
+	{
+		try
+		{
+			M2XResponse response = entity.metadata();
+			JSONObject metadata = response.success() ? response.json() : null;
+			if (metadata != null)
+				remember(entity, metadata);
+		}
+		catch (IOException ex)
+		{
+			// unknown values are written
+		}
+	}
+
+	private static final class Progress
+	{
+		int updated = 0;
+		int skipped = 0;
+		final Map<String, Integer> failures = new LinkedHashMap<String, Integer>();
+
+		synchronized void done(boolean changed)
+		{
+			if (changed)
+				this.updated++;
+			else
+				this.skipped++;
+		}
+
+		synchronized void failed(String path, int status)
+		{
+			this.failures.put(path, status);
+		}
+	}
+}
@@ -0,0 +1,445 @@
+package com.att.m2x.java;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Provisions large numbers of devices.
+ *
+ * Devices are created with {@link M2XClient#createDevice(String)} or added to a distribution with
+ * {@link M2XDistribution#addDevice(String)}, with a bounded number of requests in flight. The serial
+ * of every provisioned device, or a digest of its spec if it has none, is appended to a checkpoint
+ * file, so a run that was interrupted can be restarted with the same input and skips the devices
+ * already provisioned. A device rejected because its serial is taken (422) counts as skipped.
+ *
+ * Requests answered with 429 or 5xx are retried. Those failing with an input or output exception
+ * are retried if they were not sent, or if the device has a serial: a device created by the lost
+ * request is then rejected as duplicate and counts as skipped. Creating devices without serial is
+ * not idempotent, so their requests are not repeated once sent.
+ */
+public final class M2XBulkProvisioner
+{
+	/**
+	 * Receives a notification for every device spec processed.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param spec the device spec
+		 * @param response the API response
+		 */
+		void provisioned(JSONObject spec, M2XResponse response);
+
+		/**
+		 * @param spec the device spec
+		 * @param response the last API response (null if the request failed with an exception)
+		 * @param error the last exception (null if the API responded with an error)
+		 */
+		void failed(JSONObject spec, M2XResponse response, Exception error);
+	}
+
+	/**
+	 * Snapshot of the progress of a provisioning run.
+	 */
+	public static final class Stats
+	{
+		public final long provisioned;
+		public final long skipped;
+		public final long failed;
+		public final long retries;
+		public final long elapsedMillis;
+		/**
+		 * The number of failures by HTTP status, I/O errors are counted with status 0
+		 */
+		public final Map<Integer, Long> errors;
+
+		Stats(long provisioned, long skipped, long failed, long retries, long elapsedMillis, Map<Integer, Long> errors)
+		{
+			this.provisioned = provisioned;
+			this.skipped = skipped;
+			this.failed = failed;
+			this.retries = retries;
+			this.elapsedMillis = elapsedMillis;
+			this.errors = Collections.unmodifiableMap(errors);
+		}
+
+		/**
+		 * Returns the number of devices provisioned per second.
+		 *
+		 * @return the provisioning throughput
+		 */
+		public double throughput()
+		{
+			return this.elapsedMillis == 0 ? 0 : this.provisioned * 1000.0 / this.elapsedMillis;
+		}
+	}
+
+	/**
+	 * The number of attempts made to provision a device
+	 */
+	public volatile int maxAttempts = 3;
+	/**
+	 * The delay before the first retry in milliseconds, doubled on each further retry
+	 */
+	public volatile long retryDelay = 500;
+	/**
+	 * Optional listener notified for every device spec processed
+	 */
+	public volatile Listener listener = null;
+
+	private final M2XClient client;
+	private final M2XDistribution distribution;
+	private final int concurrency;
+	private final File checkpoint;
+
+	private long provisioned;
+	private long skipped;
+	private long failed;
+	private long retries;
+	private long started;
+	private volatile IOException checkpointError;
+	private final Map<Integer, Long> errors = new TreeMap<Integer, Long>();
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Creates a provisioner creating standalone devices.
+	 *
+	 * @param client the client
+	 * @param concurrency the maximum number of requests in flight
+	 * @param checkpoint the checkpoint file (optional)
+	 */
+	public M2XBulkProvisioner(M2XClient client, int concurrency, File checkpoint)
+	{
+		this(client, null, concurrency, checkpoint);
+	}
+
+	/**
+	 * Creates a provisioner adding devices to a distribution.
+	 *
+	 * @param distribution the distribution
+	 * @param concurrency the maximum number of requests in flight
+	 * @param checkpoint the checkpoint file (optional)
+	 */
+	public M2XBulkProvisioner(M2XDistribution distribution, int concurrency, File checkpoint)
+	{
+		this(distribution.client, distribution, concurrency, checkpoint);
+	}
+
+	private M2XBulkProvisioner(M2XClient client, M2XDistribution distribution, int concurrency, File checkpoint)
+	{
+		assert concurrency > 0;
+
+		this.client = client;
+		this.distribution = distribution;
+		this.concurrency = concurrency;
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Provisions the devices read from a file containing one JSON device spec per line.
+	 *
+	 * @param specs the file with the device specs
+	 * @return the statistics of the run
+	 * @throws IOException if the specs or the checkpoint could not be read or written
+	 * @throws JSONException if a device spec is malformed, the devices before it are provisioned
+	 * @throws InterruptedException if interrupted while waiting for the requests
+	 */
+	public Stats run(File specs) throws IOException, InterruptedException
+	{
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(specs), "UTF-8"));
+		try
+		{
+			return run(new Iterator<String>()
+			{
+				private String next = read();
+
+				private String read()
+				{
+					try
+					{
+						String line;
+						while ((line = reader.readLine()) != null)
+							if (line.trim().length() > 0)
+								return line;
+						return null;
+					}
+					catch (IOException ex)
+					{
+						throw new IllegalStateException("Unable to read device specs", ex);
+					}
+				}
+
+				public boolean hasNext() { return this.next != null; }
+
+				public String next()
+				{
+					String line = this.next;
+					this.next = read();
+					return line;
+				}
+
+				public void remove() { throw new UnsupportedOperationException(); }
+			});
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Provisions the devices of the given JSON device specs.
+	 *
+	 * @param specs the device specs as JSON formatted strings
+	 * @return the statistics of the run
+	 * @throws IOException if the checkpoint could not be read or written
+	 * @throws JSONException if a device spec is malformed, the devices before it are provisioned
+	 * @throws InterruptedException if interrupted while waiting for the requests
+	 */
+	public Stats run(Iterator<String> specs) throws IOException, InterruptedException
+	{
+		Set<String> done = readCheckpoint();
+		final Writer log = this.checkpoint == null ? null
+			: new OutputStreamWriter(new FileOutputStream(this.checkpoint, true), "UTF-8");
+		synchronized (this)
+		{
+			this.provisioned = this.skipped = this.failed = this.retries = 0;
+			this.errors.clear();
+			this.started = System.currentTimeMillis();
+		}
+		this.checkpointError = null;
+
+		M2XWorkers workers = new M2XWorkers("m2x-provisioner", this.concurrency);
+		try
+		{
+			// stops once the checkpoint cannot be written, further devices could not be skipped on restart
+			while (this.checkpointError == null && specs.hasNext())
+			{
+				final String content = specs.next();
+				final JSONObject spec = new JSONObject(content);
+				final String key = keyOf(spec, content);
+				if (!done.add(key))
+				{
+					synchronized (this)
+					{
+						this.skipped++;
+					}
+					continue;
+				}
+				workers.submit(new Runnable()
+				{
+					public void run() { provision(spec, content, key, log); }
+				});
+			}
+		}
+		finally
+		{
+			// also when aborted, so every device created is in the checkpoint before it is closed
+			workers.shutdownAndAwait();
+			if (log != null)
+				log.close();
+		}
+		if (this.checkpointError != null)
+			throw this.checkpointError;
+		return stats();
+	}
+
+	/**
+	 * Returns the progress of the current or last run.
+	 *
+	 * @return the statistics of the run
+	 */
+	public synchronized Stats stats()
+	{
+		return new Stats(this.provisioned, this.skipped, this.failed, this.retries,
+			this.started == 0 ? 0 : System.currentTimeMillis() - this.started,
+			new TreeMap<Integer, Long>(this.errors));
+	}
+
+	/**
+	 * @return the serial of the spec, or a digest of the spec if it has none
+	 */
+	static String keyOf(JSONObject spec, String content)
+	{
+		String serial = spec.optString("serial", null);
+		if (serial != null && serial.length() > 0)
+			return serial;
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(content.trim().getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(1 + digest.length * 2).append('#');
+			for (byte b : digest)
+				sb.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+		catch (IOException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * @return whether the response rejects the device because its serial is taken
+	 */
+	static boolean isDuplicateSerial(JSONObject spec, M2XResponse response)
+	{
+		if (response.status != 422 || spec.optString("serial", null) == null)
+			return false;
+		try
+		{
+			JSONObject json = response.json();
+			JSONObject errors = json == null ? null : json.optJSONObject("errors");
+			return errors != null && errors.has("serial");
+		}
+		catch (JSONException ex)
+		{
+			return false;
+		}
+	}
+
+	private Set<String> readCheckpoint() throws IOException
+	{
+		Set<String> done = new HashSet<String>();
+		if (this.checkpoint == null || !this.checkpoint.exists())
+			return done;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.checkpoint), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+				if (line.length() > 0)
+					done.add(line);
+		}
+		finally
+		{
+			reader.close();
+		}
+		return done;
+	}
+
+	private void provision(JSONObject spec, String content, String key, Writer log)
+	{
+		M2XResponse response = null;
+		Exception error = null;
+		boolean hasSerial = spec.optString("serial", "").length() > 0;
+		for (int attempt = 1; attempt <= this.maxAttempts; attempt++)
+		{
+			if (attempt > 1)
+			{
+				synchronized (this)
+				{
+					this.retries++;
+				}
+				try
+				{
+					Thread.sleep(this.retryDelay << (attempt - 2));
+				}
+				catch (InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			try
+			{
+				response = this.distribution != null
+					? this.distribution.addDevice(content)
+					: this.client.createDevice(content);
+				error = null;
+			}
+			catch (IOException ex)
+			{
+				response = null;
+				error = ex;
+				// the device may have been created if the request was sent, only a serial prevents a duplicate
+				if (M2XRetryPolicy.isNotSent(ex) || (hasSerial && !(ex instanceof M2XRejectedException)
+					&& !Thread.currentThread().isInterrupted()))
+					continue;
+				break;
+			}
+			catch (RuntimeException ex)
+			{
+				response = null;
+				error = ex;
+				break;
+			}
+			if (response.success() || (response.clientError() && response.status != 429))
+				break;
+		}
+
+		if (response != null && isDuplicateSerial(spec, response))
+		{
+			checkpoint(log, key);
+			synchronized (this)
+			{
+				this.skipped++;
+			}
+		}
+		else if (response != null && response.success())
+		{
+			checkpoint(log, key);
+			synchronized (this)
+			{
+				this.provisioned++;
+			}
+			Listener listener = this.listener;
+			if (listener != null)
+				listener.provisioned(spec, response);
+		}
+		else
+		{
+			synchronized (this)
+			{
+				this.failed++;
+				Integer status = response == null ? 0 : response.status;
+				Long count = this.errors.get(status);
+				this.errors.put(status, count == null ? 1 : count + 1);
+			}
+			Listener listener = this.listener;
+			if (listener != null)
+				listener.failed(spec, response, error);
+		}
+	}
+
+	private void checkpoint(Writer log, String key)
+	{
+		if (log == null)
+			return;
+		try
+		{
+			synchronized (log)
+			{
+				log.write(key);
+				log.write('\n');
+				log.flush();
+			}
+		}
+		catch (IOException ex)
+		{
+			this.checkpointError = ex;
+		}
+	}
+}
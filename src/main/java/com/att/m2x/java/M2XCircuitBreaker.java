@@ -0,0 +1,323 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fails requests fast while an endpoint is unhealthy, as interceptor of a client.
+ *
+ * <pre>
+ *	client.addInterceptor(new M2XRetryPolicy());
+ *	client.addInterceptor(new M2XCircuitBreaker());
+ * </pre>
+ *
+ * Each endpoint template (see {@link M2XClient#endpointTemplate(String)}) has its own circuit,
+ * which opens when the share of failed or slow calls among its recent calls reaches a threshold.
+ * Failed calls are those throwing an input or output exception or answered with status 5xx.
+ * While open, requests are rejected with {@link M2XRejectedException} without being sent. After
+ * the open duration the circuit is half open and lets a limited number of probe requests through:
+ * it closes if they all succeed and opens again otherwise.
+ *
+ * Add the breaker after an {@link M2XRetryPolicy} so every attempt is counted; rejected requests
+ * are not retried.
+ */
+public final class M2XCircuitBreaker implements M2XInterceptor
+{
+	/**
+	 * The state of a circuit
+	 */
+	public enum State
+	{
+		/** Requests are sent */
+		CLOSED,
+		/** Requests are rejected */
+		OPEN,
+		/** A limited number of probe requests are sent */
+		HALF_OPEN
+	}
+
+	/**
+	 * Receives the state transitions of the circuits. Called from the thread whose request caused
+	 * the transition, so implementations must be thread safe and should return quickly.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when the circuit of an endpoint changes its state.
+		 *
+		 * @param endpoint the endpoint template
+		 * @param from the previous state
+		 * @param to the new state
+		 */
+		void stateChanged(String endpoint, State from, State to);
+	}
+
+	/**
+	 * The number of recent calls per endpoint the rates are computed of
+	 */
+	public volatile int windowSize = 100;
+	/**
+	 * The number of calls in the window before the circuit can open
+	 */
+	public volatile int minimumCalls = 20;
+	/**
+	 * The percentage of failed calls opening the circuit
+	 */
+	public volatile int failureRateThreshold = 50;
+	/**
+	 * The duration in milliseconds from which a call is slow
+	 */
+	public volatile long slowCallDuration = 5000;
+	/**
+	 * The percentage of slow calls opening the circuit
+	 */
+	public volatile int slowCallRateThreshold = 80;
+	/**
+	 * The time in milliseconds a circuit stays open before probing
+	 */
+	public volatile long openDuration = 30000;
+	/**
+	 * The number of probe requests of a half open circuit
+	 */
+	public volatile int halfOpenProbes = 3;
+	/**
+	 * The listener of state transitions (optional)
+	 */
+	public volatile Listener listener = null;
+
+	private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+	public M2XResponse intercept(Chain chain) throws IOException
+	{
+		M2XRequest request = chain.request();
+		String endpoint = M2XClient.endpointTemplate(request.path);
+		Circuit circuit = circuit(endpoint);
+		if (!circuit.acquire())
+			throw new M2XRejectedException(endpoint, "Circuit open for " + endpoint);
+
+		long start = System.nanoTime();
+		M2XResponse response;
+		try
+		{
+			response = chain.proceed(request);
+		}
+		catch (SocketTimeoutException ex)
+		{
+			// a slow endpoint, unlike an interrupt
+			circuit.record(true, System.nanoTime() - start);
+			throw ex;
+		}
+		catch (InterruptedIOException ex)
+		{
+			circuit.release();
+			throw ex;
+		}
+		catch (M2XRejectedException ex)
+		{
+			circuit.release();
+			throw ex;
+		}
+		catch (IOException ex)
+		{
+			circuit.record(true, System.nanoTime() - start);
+			throw ex;
+		}
+		catch (RuntimeException ex)
+		{
+			circuit.release();
+			throw ex;
+		}
+		circuit.record(response.serverError(), System.nanoTime() - start);
+		return response;
+	}
+
+	/**
+	 * Returns the state of the circuit of an endpoint.
+	 *
+	 * @param endpoint the endpoint template
+	 * @return the state, closed for endpoints without calls
+	 */
+	public State state(String endpoint)
+	{
+		Circuit circuit = this.circuits.get(endpoint);
+		return circuit == null ? State.CLOSED : circuit.state();
+	}
+
+	/**
+	 * Closes all circuits and forgets their calls.
+	 */
+	public void reset()
+	{
+		for (Circuit circuit : this.circuits.values())
+			circuit.reset();
+	}
+
+	private Circuit circuit(String endpoint)
+	{
+		Circuit circuit = this.circuits.get(endpoint);
+		if (circuit == null)
+		{
+			circuit = new Circuit(endpoint);
+			Circuit previous = this.circuits.putIfAbsent(endpoint, circuit);
+			if (previous != null)
+				circuit = previous;
+		}
+		return circuit;
+	}
+
+	private void fire(String endpoint, State from, State to)
+	{
+		Listener listener = this.listener;
+		if (listener == null || from == to)
+			return;
+		try
+		{
+			listener.stateChanged(endpoint, from, to);
+		}
+		catch (RuntimeException ex)
+		{
+			// a failing listener must not fail the request reporting the transition
+		}
+	}
+
+	private final class Circuit
+	{
+		private static final byte FAILED = 1;
+		private static final byte SLOW = 2;
+
+		private final String endpoint;
+		private State state = State.CLOSED;
+		// outcomes of the recent calls as FAILED | SLOW bits
+		private byte[] window = new byte[0];
+		private int next;
+		private int calls;
+		private int failures;
+		private int slowCalls;
+		private long openedAt;
+		private int probes;
+		private int probesSucceeded;
+
+		Circuit(String endpoint)
+		{
+			this.endpoint = endpoint;
+		}
+
+		synchronized State state()
+		{
+			return this.state;
+		}
+
+		boolean acquire()
+		{
+			State from;
+			synchronized (this)
+			{
+				from = this.state;
+				if (from == State.CLOSED)
+					return true;
+				if (from == State.OPEN)
+				{
+					if (System.nanoTime() - this.openedAt < openDuration * 1000000)
+						return false;
+					this.state = State.HALF_OPEN;
+					this.probes = 0;
+					this.probesSucceeded = 0;
+				}
+				if (this.probes >= halfOpenProbes)
+					return false;
+				this.probes++;
+			}
+			fire(this.endpoint, from, State.HALF_OPEN);
+			return true;
+		}
+
+		/**
+		 * Gives back a permit without recording an outcome, for calls which did not reach the API.
+		 */
+		synchronized void release()
+		{
+			if (this.state == State.HALF_OPEN && this.probes > 0)
+				this.probes--;
+		}
+
+		void record(boolean failed, long nanos)
+		{
+			byte outcome = (byte)((failed ? FAILED : 0) | (nanos >= slowCallDuration * 1000000 ? SLOW : 0));
+			State from;
+			State to;
+			synchronized (this)
+			{
+				from = this.state;
+				if (from == State.HALF_OPEN)
+				{
+					if (outcome != 0)
+						open();
+					else if (++this.probesSucceeded >= halfOpenProbes)
+						close();
+				}
+				else if (from == State.CLOSED)
+				{
+					add(outcome);
+					if (this.calls >= Math.min(minimumCalls, this.window.length)
+						&& (this.failures * 100 >= failureRateThreshold * this.calls
+							|| this.slowCalls * 100 >= slowCallRateThreshold * this.calls))
+						open();
+				}
+				to = this.state;
+			}
+			fire(this.endpoint, from, to);
+		}
+
+		private void add(byte outcome)
+		{
+			int size = Math.max(1, windowSize);
+			if (this.window.length != size)
+			{
+				this.window = new byte[size];
+				this.next = this.calls = this.failures = this.slowCalls = 0;
+			}
+			if (this.calls == size)
+			{
+				byte evicted = this.window[this.next];
+				if ((evicted & FAILED) != 0)
+					this.failures--;
+				if ((evicted & SLOW) != 0)
+					this.slowCalls--;
+			}
+			else
+				this.calls++;
+			this.window[this.next] = outcome;
+			this.next = (this.next + 1) % size;
+			if ((outcome & FAILED) != 0)
+				this.failures++;
+			if ((outcome & SLOW) != 0)
+				this.slowCalls++;
+		}
+
+		private void open()
+		{
+			this.state = State.OPEN;
+			this.openedAt = System.nanoTime();
+		}
+
+		private void close()
+		{
+			this.state = State.CLOSED;
+			this.window = new byte[0];
+			this.next = this.calls = this.failures = this.slowCalls = 0;
+		}
+
+		void reset()
+		{
+			State from;
+			synchronized (this)
+			{
+				from = this.state;
+				close();
+			}
+			fire(this.endpoint, from, State.CLOSED);
+		}
+	}
+}
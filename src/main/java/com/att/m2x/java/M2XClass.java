@@ -6,19 +6,21 @@ public abstract class M2XClass
 {
 	public final M2XClient client;
 
-	M2XClass(M2XClient client)
+	/**
+	 * The API path of this entity, computed once since it is part of every request
+	 *
+	 */
+	private final String basePath;
+
+	M2XClass(M2XClient client, String basePath)
 	{
 		this.client = client;
+		this.basePath = basePath;
 	}
 
-	abstract String buildPath(String path);
-	String concat(String... strings)
+	String buildPath(String path)
 	{
-		StringBuilder sb = new StringBuilder();
-		for (String str : strings)
-			if (str != null)
-				sb.append(str);
-		return sb.toString();
+		return path == null || path.length() == 0 ? this.basePath : this.basePath.concat(path);
 	}
 
 	public M2XResponse makeGet(String path, String query) throws IOException
@@ -44,6 +46,12 @@ public abstract class M2XClass
 		return this.client.makeRequest(method, buildPath(path), query, jsonContent);
 	}
 
+	public M2XResponse makeStreamingRequest(String method, String path, String query, M2XRequestBody body)
+		throws IOException
+	{
+		return this.client.makeStreamingRequest(method, buildPath(path), query, body);
+	}
+
 	/**
 	 * Get details of an existing entity.
 	 *
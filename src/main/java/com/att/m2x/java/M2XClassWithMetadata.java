@@ -4,9 +4,9 @@ import java.io.IOException;
 
 public abstract class M2XClassWithMetadata extends M2XClass
 {
-	M2XClassWithMetadata(M2XClient client)
+	M2XClassWithMetadata(M2XClient client, String basePath)
 	{
-		super(client);
+		super(client, basePath);
 	}
 
 	/**
@@ -3,14 +3,13 @@ package com.att.m2x.java;
 import java.io.*;
 import java.lang.reflect.Field;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URI;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.Map;
 import java.util.Set;
-import java.util.TimeZone;
 
 import org.json.JSONObject;
 import org.json.JSONStringer;
@@ -34,17 +33,108 @@ public final class M2XClient
 	public int readTimeout = 30000;
 
 	/**
-	 * The last API call response
+	 * The last API call response, unless trackLastResponse is disabled
 	 *
 	 */
 	public volatile M2XResponse lastResponse = null;
 
+	/**
+	 * Whether every response is stored in lastResponse. Disable it when the client is shared by
+	 * many threads, and use a response listener instead if the last response is needed.
+	 *
+	 */
+	public boolean trackLastResponse = true;
+
+	/**
+	 * Optional receiver of request measurements
+	 *
+	 */
+	public volatile M2XMetrics metrics = null;
+
+	/**
+	 * Request bodies of at least this many bytes are sent gzip compressed, negative to never
+	 * compress them. Disabled by default, enable it only for endpoints accepting compressed bodies.
+	 *
+	 */
+	public volatile int compressionThreshold = -1;
+
+	/**
+	 * Whether gzip compressed responses are accepted, they are decoded transparently. Disabled by
+	 * default, as earlier releases never requested them.
+	 *
+	 */
+	public volatile boolean acceptCompressed = false;
+
+	/**
+	 * Whether response bodies are decoded as soon as they are read. Disable it when reading
+	 * responses with M2XResponse.bytes() or inputStream(), raw() and json() then decode them on
+	 * first use.
+	 *
+	 */
+	public volatile boolean decodeResponses = true;
+
+	/**
+	 * Response bodies larger than this many bytes are kept in a temporary memory mapped file
+	 * instead of memory, and decoded only when used. Disabled by default, as such responses
+	 * are only available through M2XResponse.raw() and not the deprecated raw field.
+	 *
+	 */
+	public volatile int responseMemoryLimit = Integer.MAX_VALUE;
+
+	/**
+	 * Responses with bodies larger than this many bytes, at most 2 GB, are aborted with an
+	 * M2XRejectedException.
+	 *
+	 */
+	public volatile long maxResponseSize = Integer.MAX_VALUE;
+
+	private static final M2XInterceptor[] NO_INTERCEPTORS = new M2XInterceptor[0];
+	private volatile M2XInterceptor[] interceptors = NO_INTERCEPTORS;
+
+	// handles per cache generation, see M2XHandleCache
+	static final int DEVICE_HANDLES = 10000;
+	static final int STREAM_HANDLES = 256;
+	static final int URL_HANDLES = 4096;
+
+	private final M2XHandleCache<String, M2XDevice> devices = new M2XHandleCache<String, M2XDevice>(DEVICE_HANDLES);
+	private final M2XHandleCache<String, M2XDevice> devicesBySerial = new M2XHandleCache<String, M2XDevice>(DEVICE_HANDLES);
+	// URLs of requests without query by path, the same for every request of an entity
+	private final M2XHandleCache<String, URL> urls = new M2XHandleCache<String, URL>(URL_HANDLES);
+
+	private final ThreadLocal<M2XResponseListener> responseListener = new ThreadLocal<M2XResponseListener>();
+	private volatile boolean responseListeners = false;
+
+	// the endpoint parsed once: "scheme://authority/v2" and its URL parts
+	private final String baseUrl;
+	private final String protocol;
+	private final String host;
+	private final int port;
+	private final String basePath;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	// characters left unquoted in paths and queries, as by java.net.URI
+	private static final boolean[] PATH_CHARS = new boolean[128];
+	private static final boolean[] QUERY_CHARS = new boolean[128];
+
 	static
 	{
 		String version = "5.0.0";
 		String langVersion = System.getProperty("java.version");
 		String osVersion = System.getProperty("os.arch") + "-" + System.getProperty("os.name") + System.getProperty("os.version");
 		USER_AGENT = String.format("M2X-Java/%s java/%s (%s)", version, langVersion, osVersion);
+
+		for (char c = '0'; c <= '9'; c++)
+			PATH_CHARS[c] = true;
+		for (char c = 'a'; c <= 'z'; c++)
+			PATH_CHARS[c] = PATH_CHARS[Character.toUpperCase(c)] = true;
+		for (char c : "-_.!~*'()".toCharArray())
+			PATH_CHARS[c] = true;
+		System.arraycopy(PATH_CHARS, 0, QUERY_CHARS, 0, PATH_CHARS.length);
+		for (char c : ":@&=+$,;/".toCharArray())
+			PATH_CHARS[c] = QUERY_CHARS[c] = true;
+		for (char c : "?[]".toCharArray())
+			QUERY_CHARS[c] = true;
 	}
 
 	public M2XClient(String apiKey)
@@ -58,6 +148,21 @@ public final class M2XClient
 
 		this.apiKey = apiKey;
 		this.endpoint = endpoint;
+
+		int separator = endpoint.indexOf("://");
+		try
+		{
+			this.baseUrl = new URI(endpoint.substring(0, separator), endpoint.substring(separator + 3), API_VERSION, null, null).toString();
+			URL url = new URL(this.baseUrl);
+			this.protocol = url.getProtocol();
+			this.host = url.getHost();
+			this.port = url.getPort();
+			this.basePath = url.getPath();
+		}
+		catch (Exception ex)
+		{
+			throw new RuntimeException("Error building the URI: " + ex.getLocalizedMessage());
+		}
 	}
 
 	// Device API
@@ -145,23 +250,34 @@ public final class M2XClient
 	}
 
 	/**
-	 * Get a wrapper to access an existing Device.
+	 * Get a wrapper to access an existing Device. Wrappers are cached, so repeated calls usually
+	 * return the same instance.
 	 *
 	 * @param deviceId the id of the device
 	 * @return the M2X device associated with the given deviceId
 	 */
 	public M2XDevice device(String deviceId)
 	{
-		return new M2XDevice(this, deviceId, null);
+		if (deviceId == null)
+			return new M2XDevice(this, deviceId, null);
+		M2XDevice device = this.devices.get(deviceId);
+		return device != null ? device : this.devices.putIfAbsent(deviceId, new M2XDevice(this, deviceId, null));
 	}
 
 	/**
-	 * Get a wrapper to access an existing Device.
+	 * Get a wrapper to access an existing Device. Wrappers are cached, so repeated calls usually
+	 * return the same instance.
 	 *
 	 * @param serial the serial of the device
 	 * @return the M2X device associated with the given serial
 	 */
-	public M2XDevice deviceBySerial(String serial) { return new M2XDevice(this, null, serial); }
+	public M2XDevice deviceBySerial(String serial)
+	{
+		if (serial == null)
+			return new M2XDevice(this, null, serial);
+		M2XDevice device = this.devicesBySerial.get(serial);
+		return device != null ? device : this.devicesBySerial.putIfAbsent(serial, new M2XDevice(this, null, serial));
+	}
 
 	// Distribution API
 
@@ -369,6 +485,41 @@ public final class M2XClient
 
 	// Common
 
+	/**
+	 * Adds an interceptor called for every request after the interceptors already added.
+	 *
+	 * @param interceptor the interceptor
+	 */
+	public synchronized void addInterceptor(M2XInterceptor interceptor)
+	{
+		M2XInterceptor[] current = this.interceptors;
+		M2XInterceptor[] updated = new M2XInterceptor[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = interceptor;
+		this.interceptors = updated;
+	}
+
+	/**
+	 * Removes an interceptor.
+	 *
+	 * @param interceptor the interceptor
+	 */
+	public synchronized void removeInterceptor(M2XInterceptor interceptor)
+	{
+		M2XInterceptor[] current = this.interceptors;
+		for (int i = 0; i < current.length; i++)
+		{
+			if (current[i] == interceptor)
+			{
+				M2XInterceptor[] updated = new M2XInterceptor[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				this.interceptors = updated.length == 0 ? NO_INTERCEPTORS : updated;
+				return;
+			}
+		}
+	}
+
 	/**
 	 * Makes a call to AT&amp;T M2X API
 	 *
@@ -382,23 +533,199 @@ public final class M2XClient
 	public M2XResponse makeRequest(String method, String path, String query, String jsonContent)
 		throws IOException
 	{
-		URL uri = new URL(buildUrl(path, query));
+		M2XInterceptor[] interceptors = this.interceptors;
+		M2XResponse response = interceptors.length == 0
+			? send(method, path, query, jsonContent, null, null)
+			: new Chain(interceptors, 0, new M2XRequest(method, path, query, jsonContent)).proceed();
+		return received(response);
+	}
+
+	/**
+	 * Makes a call to AT&amp;T M2X API with a body written while sending, in chunks
+	 *
+	 * @param method the HTTP method (POST/PUT)
+	 * @param path the API URL path (optional)
+	 * @param query the API URL query parameters (optional)
+	 * @param body the request body
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 */
+	public M2XResponse makeStreamingRequest(String method, String path, String query, M2XRequestBody body)
+		throws IOException
+	{
+		assert body != null;
+
+		M2XInterceptor[] interceptors = this.interceptors;
+		M2XResponse response = interceptors.length == 0
+			? send(method, path, query, null, body, null)
+			: new Chain(interceptors, 0, new M2XRequest(method, path, query, null).body(body)).proceed();
+		return received(response);
+	}
+
+	private M2XResponse received(M2XResponse response)
+	{
+		if (this.trackLastResponse)
+			this.lastResponse = response;
+		if (this.responseListeners)
+		{
+			M2XResponseListener listener = this.responseListener.get();
+			if (listener != null)
+				listener.onResponse(response);
+		}
+		return response;
+	}
+
+	/**
+	 * Registers a listener receiving the responses of all requests made by the current thread
+	 * with this client, replacing the listener registered before.
+	 *
+	 * @param listener the listener, null to remove the current listener
+	 */
+	public void setResponseListener(M2XResponseListener listener)
+	{
+		if (listener == null)
+			this.responseListener.remove();
+		else
+		{
+			this.responseListener.set(listener);
+			this.responseListeners = true;
+		}
+	}
+
+	private M2XResponse send(String method, String path, String query, String jsonContent, M2XRequestBody body,
+		Map<String, String> headers)
+		throws IOException
+	{
+		URL uri = buildURL(path, query);
 		HttpURLConnection conn = (HttpURLConnection)uri.openConnection();
 		conn.setRequestMethod(method);
 		if (this.apiKey != null)
 			conn.setRequestProperty("X-M2X-KEY", this.apiKey);
 		conn.setRequestProperty("User-Agent", USER_AGENT);
 		conn.setRequestProperty("Accept", "application/json,text/csv");
+		if (this.acceptCompressed)
+			conn.setRequestProperty("Accept-Encoding", "gzip");
+		if (headers != null)
+			for (Map.Entry<String, String> header : headers.entrySet())
+				conn.setRequestProperty(header.getKey(), header.getValue());
 		conn.setConnectTimeout(this.connectionTimeout);
 		conn.setReadTimeout(this.readTimeout);
 
-		M2XResponse response = new M2XResponse(conn, jsonContent);
-		this.lastResponse = response;
+		M2XMetrics metrics = this.metrics;
+		if (metrics == null)
+			return new M2XResponse(conn, this, jsonContent, body);
+
+		String endpoint = endpointTemplate(path);
+		metrics.requestStarted(endpoint, method);
+		long start = System.nanoTime();
+		M2XResponse response = null;
+		IOException error = null;
+		try
+		{
+			response = new M2XResponse(conn, this, jsonContent, body);
+		}
+		catch (IOException ex)
+		{
+			error = ex;
+			throw ex;
+		}
+		finally
+		{
+			// also for runtime exceptions, e.g. of a request body, so the request does not stay in flight
+			if (response == null)
+				metrics.requestFailed(endpoint, method, System.nanoTime() - start,
+					error != null ? error : new IOException("Request failed unexpectedly"));
+		}
+		metrics.requestCompleted(endpoint, method, response.status, response.connectNanos,
+			response.firstByteNanos, response.totalNanos, response.bytesSent, response.bytesReceived);
 		return response;
 	}
 
+	private final class Chain implements M2XInterceptor.Chain
+	{
+		private final M2XInterceptor[] interceptors;
+		private final int index;
+		private final M2XRequest request;
+
+		Chain(M2XInterceptor[] interceptors, int index, M2XRequest request)
+		{
+			this.interceptors = interceptors;
+			this.index = index;
+			this.request = request;
+		}
+
+		public M2XClient client() { return M2XClient.this; }
+
+		public M2XRequest request() { return this.request; }
+
+		M2XResponse proceed() throws IOException
+		{
+			return this.interceptors[this.index].intercept(this);
+		}
+
+		public M2XResponse proceed(M2XRequest request) throws IOException
+		{
+			int next = this.index + 1;
+			return next == this.interceptors.length
+				? send(request.method, request.path, request.query, request.jsonContent, request.body, request.headers)
+				: new Chain(this.interceptors, next, request).proceed();
+		}
+	}
+
 	/**
-	 * Builds url to AT&amp;T M2X API
+	 * Replaces the ids and names in an API URL path by placeholders, e.g.
+	 * "/devices/123/streams/temperature/values" becomes "/devices/:id/streams/:name/values"
+	 *
+	 * @param path the API URL path (optional)
+	 * @return the endpoint template of the path
+	 */
+	public static String endpointTemplate(String path)
+	{
+		if (path == null || path.length() == 0)
+			return "/";
+
+		StringBuilder sb = new StringBuilder(path.length());
+		String previous = null;
+		int start = path.charAt(0) == '/' ? 1 : 0;
+		while (start <= path.length())
+		{
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = path.length();
+			String segment = path.substring(start, end);
+			sb.append('/');
+			String placeholder = placeholderAfter(previous, segment);
+			sb.append(placeholder == null ? segment : placeholder);
+			previous = placeholder == null ? segment : null;
+			start = end + 1;
+		}
+		return sb.toString();
+	}
+
+	private static String placeholderAfter(String parent, String segment)
+	{
+		if (parent == null || segment.length() == 0)
+			return null;
+		if (parent.equals("streams"))
+			return ":name";
+		if (parent.equals("metadata"))
+			return ":field";
+		if (parent.equals("serial"))
+			return ":serial";
+		if (parent.equals("devices"))
+			return segment.equals("catalog") || segment.equals("search") || segment.equals("tags") || segment.equals("serial")
+				? null : ":id";
+		if (parent.equals("distributions") || parent.equals("collections") || parent.equals("jobs") || parent.equals("commands"))
+			return ":id";
+		if (parent.equals("keys"))
+			return ":key";
+		return null;
+	}
+
+	/**
+	 * Builds url to AT&amp;T M2X API. The query is expected to be URL encoded: valid %XX escapes
+	 * are kept, other characters not allowed in a query are percent-encoded, e.g. "a b&amp;c=100%"
+	 * becomes "a%20b&amp;c=100%25" but "c=100%25" is kept as it is.
 	 *
 	 * @param path the API URL path (optional)
 	 * @param query the API URL query parameters (optional)
@@ -406,34 +733,86 @@ public final class M2XClient
 	 */
 	public String buildUrl(String path, String query)
 	{
-		String[] tokens = this.endpoint.split("://");
-		String scheme = tokens[0];
-		String host = tokens[1];
-		StringBuilder fullPath = new StringBuilder(API_VERSION);
+		return appendPathAndQuery(new StringBuilder(128).append(this.baseUrl), path, query).toString();
+	}
 
-		if(path != null && !path.isEmpty())
-		{
-			fullPath.append(path);
-		}
+	private URL buildURL(String path, String query) throws MalformedURLException
+	{
+		if (query != null || path == null)
+			return newURL(path, query);
+		URL url = this.urls.get(path);
+		return url != null ? url : this.urls.putIfAbsent(path, newURL(path, null));
+	}
 
-		try
-		{
-			URI uri = new URI(scheme, host, fullPath.toString(), query, null);
-			return uri.toString();
-		}catch(java.net.URISyntaxException ex)
+	private URL newURL(String path, String query) throws MalformedURLException
+	{
+		String file = appendPathAndQuery(new StringBuilder(128).append(this.basePath), path, query).toString();
+		return new URL(this.protocol, this.host, this.port, file);
+	}
+
+	private static StringBuilder appendPathAndQuery(StringBuilder sb, String path, String query)
+	{
+		if (path != null)
+			appendQuoted(sb, path, PATH_CHARS, false);
+		if (query != null)
+			appendQuoted(sb.append('?'), query, QUERY_CHARS, true);
+		return sb;
+	}
+
+	/**
+	 * Appends the string with illegal characters percent-encoded as UTF-8; strings without any
+	 * (ids, stream names) are appended as they are. Queries are expected to be encoded already
+	 * (see {@link #mapToQuery(Map)} and {@link M2XQuery}), so their escapes are kept.
+	 */
+	private static void appendQuoted(StringBuilder sb, String str, boolean[] legal, boolean keepEscapes)
+	{
+		int length = str.length();
+		int start = 0;
+		while (start < length)
 		{
-			throw new RuntimeException("Error building the URI: " + ex.getLocalizedMessage());
+			int end = start;
+			while (end < length && isLegal(str, end, legal, keepEscapes))
+				end++;
+			sb.append(str, start, end);
+			if (end == length)
+				return;
+
+			start = end;
+			while (end < length && !isLegal(str, end, legal, keepEscapes))
+				end++;
+			for (byte b : str.substring(start, end).getBytes(UTF8))
+				sb.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+			start = end;
 		}
 	}
 
+	private static boolean isLegal(String str, int index, boolean[] legal, boolean keepEscapes)
+	{
+		char c = str.charAt(index);
+		if (c < 128 && legal[c])
+			return true;
+		return c == '%' && keepEscapes && index + 2 < str.length()
+			&& isHexDigit(str.charAt(index + 1)) && isHexDigit(str.charAt(index + 2));
+	}
+
+	private static boolean isHexDigit(char c)
+	{
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
 	/**
-	 * Serializes all fields of a given object to query string
+	 * Serializes all fields of a given object to query string, with the {@link M2XWriter} of its
+	 * class if there is one
 	 *
 	 * @param obj the object used to construct query string
 	 * @return the given object as serialized query string
 	 */
 	public static String objectToQuery(Object obj)
 	{
+		String query = M2XWriters.toQuery(obj);
+		if (query != null)
+			return query;
+
 		StringBuilder sb = new StringBuilder();
 		Class c = obj.getClass();
 		for (Field field: c.getFields())
@@ -447,24 +826,13 @@ public final class M2XClient
 			{
 				continue;
 			}
-			if (sb.length() > 0)
-				sb.append('&');
-			String encoded;
-			try
-			{
-				encoded = value == null ? "" : java.net.URLEncoder.encode(value.toString(), "UTF-8");
-			}
-			catch (UnsupportedEncodingException ex)
-			{
-				continue;
-			}
-			sb.append(field.getName()).append('=').append(encoded);
+			M2XWriters.appendParameter(sb, field.getName(), value);
 		}
 		return sb.toString();
 	}
 
 	/**
-	 * Serializes a given map to query string
+	 * Serializes a given map to query string, the values URL encoded
 	 *
 	 * @param map the map used to construct query string
 	 * @return the given map as serialized query string
@@ -474,18 +842,13 @@ public final class M2XClient
 		StringBuilder sb = new StringBuilder();
 
 		for (Map.Entry<String, String> entry: map.entrySet())
-		{
-			String value = entry.getValue();
-			if (sb.length() > 0)
-				sb.append('&');
-
-			sb.append(entry.getKey()).append('=').append(value);
-		}
+			M2XWriters.appendParameter(sb, entry.getKey(), entry.getValue());
 		return sb.toString();
 	}
 
 	/**
-	 * Serializes a given object into json string using JSONObject
+	 * Serializes a given object into json string using JSONObject, or the {@link M2XWriter} of its
+	 * class if there is one
 	 *
 	 * @param obj the object used to construct serialized JSON string
 	 * @return the given object as serialized JSON string
@@ -493,6 +856,10 @@ public final class M2XClient
 	 */
 	public static String jsonSerialize(Object obj)
 	{
+		String serialized = M2XWriters.toJson(obj);
+		if (serialized != null)
+			return serialized;
+
 		JSONObject json = new JSONObject(obj);
 		return json.toString();
 	}
@@ -524,9 +891,20 @@ public final class M2XClient
 	 */
 	public static String dateTimeToString(Date dateTime)
 	{
-		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
-		df.setTimeZone(TimeZone.getTimeZone("UTC"));
-		return df.format(dateTime).concat("Z");
+		return M2XTimestamps.format(dateTime.getTime());
+	}
+
+	/**
+	 * Parses an ISO8601 timestamp, as found in API responses
+	 *
+	 * @param dateTime the ISO8601 timestamp
+	 * @return the timestamp as Date object
+	 * @throws IllegalArgumentException if the timestamp is invalid
+	 * @see M2XTimestamps#parse(CharSequence)
+	 */
+	public static Date stringToDateTime(String dateTime)
+	{
+		return new Date(M2XTimestamps.parse(dateTime));
 	}
 }
 
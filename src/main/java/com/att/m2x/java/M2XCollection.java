@@ -15,14 +15,9 @@ public final class M2XCollection extends M2XClassWithMetadata
 
 	M2XCollection(M2XClient client, String collectionId)
 	{
-		super(client);
+		super(client, M2XCollection.URL_PATH + "/" + collectionId);
 		assert collectionId != null && collectionId.length() > 0;
 
 		this.collectionId = collectionId;
 	}
-
-	String buildPath(String path)
-	{
-		return concat(M2XCollection.URL_PATH, "/", this.collectionId, path);
-	}
 }
@@ -0,0 +1,229 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.json.JSONStringer;
+
+/**
+ * Sends a command to a large set of devices.
+ *
+ * The targets are split into chunks which are sent as separate commands, with a bounded number of
+ * requests in flight. Chunks answered with 5xx or 429 or failing before they were sent (see
+ * {@link M2XRetryPolicy}) are retried with exponential backoff, chunks rejected as too large (413)
+ * are split in half and sent again. A chunk failing with an I/O error after it was sent, e.g. a
+ * read timeout, is not repeated, as the devices may already have received the command.
+ *
+ * @see <a href="https://m2x.att.com/developer/documentation/v2/commands#Send-Command">https://m2x.att.com/developer/documentation/v2/commands#Send-Command</a>
+ */
+public final class M2XCommandBroadcast
+{
+	/**
+	 * Delivery report of a broadcast.
+	 */
+	public static final class Report
+	{
+		/**
+		 * The number of commands sent successfully
+		 */
+		public final int sentChunks;
+		/**
+		 * The number of retried requests
+		 */
+		public final int retries;
+		/**
+		 * The ids of the commands sent, if returned by the API
+		 */
+		public final List<String> commandIds;
+		/**
+		 * The ids of the devices the command could not be sent to
+		 */
+		public final List<String> failedDevices;
+
+		Report(int sentChunks, int retries, List<String> commandIds, List<String> failedDevices)
+		{
+			this.sentChunks = sentChunks;
+			this.retries = retries;
+			this.commandIds = Collections.unmodifiableList(commandIds);
+			this.failedDevices = Collections.unmodifiableList(failedDevices);
+		}
+
+		/**
+		 * Returns whether the command was sent to all devices.
+		 *
+		 * @return true if no chunk failed
+		 */
+		public boolean success() { return this.failedDevices.isEmpty(); }
+	}
+
+	/**
+	 * The maximum number of devices targeted by a single command
+	 */
+	public volatile int chunkSize = 1000;
+	/**
+	 * The number of attempts made to send a chunk
+	 */
+	public volatile int maxAttempts = 3;
+	/**
+	 * The delay before the first retry in milliseconds, doubled on each further retry
+	 */
+	public volatile long retryDelay = 500;
+
+	private final M2XClient client;
+	private final int concurrency;
+
+	public M2XCommandBroadcast(M2XClient client, int concurrency)
+	{
+		assert concurrency > 0;
+
+		this.client = client;
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Sends a command to all devices of the given set and waits until all chunks are sent.
+	 *
+	 * @param name the name of the command
+	 * @param data the data of the command (optional)
+	 * @param targets the devices to send the command to
+	 * @return the delivery report
+	 * @throws IOException if the targets could not be resolved
+	 * @throws InterruptedException if interrupted while waiting for the chunks
+	 */
+	public Report send(String name, JSONObject data, M2XDeviceSet targets) throws IOException, InterruptedException
+	{
+		List<String> ids = targets.resolve();
+		Progress progress = new Progress(name, data);
+		M2XWorkers workers = new M2XWorkers("m2x-command-broadcast", this.concurrency);
+		try
+		{
+			int size = Math.max(1, this.chunkSize);
+			for (int i = 0; i < ids.size(); i += size)
+				progress.submit(workers, ids.subList(i, Math.min(i + size, ids.size())));
+			workers.await();
+		}
+		finally
+		{
+			workers.shutdown();
+		}
+		synchronized (progress)
+		{
+			return new Report(progress.sent, progress.retries, progress.commandIds, progress.failed);
+		}
+	}
+
+	static String commandBody(String name, JSONObject data, List<String> deviceIds)
+	{
+		JSONStringer writer = new JSONStringer();
+		writer.object().key("name").value(name);
+		if (data != null)
+			writer.key("data").value(data);
+		writer.key("targets").object().key("devices").array();
+		for (String id : deviceIds)
+			writer.value(id);
+		writer.endArray().endObject().endObject();
+		return writer.toString();
+	}
+
+	private final class Progress
+	{
+		final String name;
+		final JSONObject data;
+		final List<String> commandIds = new ArrayList<String>();
+		final List<String> failed = new ArrayList<String>();
+		int sent = 0;
+		int retries = 0;
+
+		Progress(String name, JSONObject data)
+		{
+			this.name = name;
+			this.data = data;
+		}
+
+		void submit(M2XWorkers workers, final List<String> chunk) throws InterruptedException
+		{
+			workers.submit(new Runnable()
+			{
+				public void run() { sendChunk(chunk); }
+			});
+		}
+
+		void sendChunk(List<String> chunk)
+		{
+			String body = commandBody(this.name, this.data, chunk);
+			M2XResponse response = null;
+			for (int attempt = 1; attempt <= maxAttempts; attempt++)
+			{
+				if (attempt > 1)
+				{
+					synchronized (this)
+					{
+						this.retries++;
+					}
+					try
+					{
+						Thread.sleep(retryDelay << (attempt - 2));
+					}
+					catch (InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+
+				try
+				{
+					response = client.sendCommand(body);
+				}
+				catch (IOException ex)
+				{
+					response = null;
+					// a command sent again would reach the devices twice
+					if (M2XRetryPolicy.isNotSent(ex))
+						continue;
+					break;
+				}
+				catch (RuntimeException ex)
+				{
+					// e.g. from an interceptor, not worth retrying
+					response = null;
+					break;
+				}
+				if (response.success() || (response.clientError() && response.status != 429))
+					break;
+			}
+
+			if (response != null && response.status == 413 && chunk.size() > 1)
+			{
+				int half = chunk.size() / 2;
+				sendChunk(chunk.subList(0, half));
+				sendChunk(chunk.subList(half, chunk.size()));
+			}
+			else
+				completed(chunk, response);
+		}
+
+		private synchronized void completed(List<String> chunk, M2XResponse response)
+		{
+			if (response != null && response.success())
+			{
+				this.sent++;
+				try
+				{
+					JSONObject json = response.json();
+					if (json != null && json.has("id"))
+						this.commandIds.add(json.getString("id"));
+				}
+				catch (RuntimeException ex)
+				{
+					// sent, but the command id is unknown
+				}
+			}
+			else
+				this.failed.addAll(chunk);
+		}
+	}
+}
@@ -0,0 +1,480 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Dispatches received device commands to a pool of workers and acknowledges them asynchronously.
+ *
+ * Commands are queued on bounded lanes, one worker thread per lane. All commands of a device go
+ * through the same lane, so they are handled in the order they were submitted. The acknowledgement
+ * returned by the handler is sent with processCommand/rejectCommand on a separate pool and retried
+ * with exponential backoff, so workers never wait for the ack round trip.
+ *
+ * @see <a href="https://m2x.att.com/developer/documentation/v2/commands">M2X Commands API Documentation</a>
+ */
+public final class M2XCommandDispatcher
+{
+	/**
+	 * Handles a single command received by a device.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Handles the command.
+		 *
+		 * @param device the device the command was sent to
+		 * @param command the command as returned by the API
+		 * @return the acknowledgement to send, or null if the command should not be acknowledged
+		 * @throws Exception if the command could not be handled, the command is then rejected
+		 */
+		Ack handle(M2XDevice device, JSONObject command) throws Exception;
+	}
+
+	/**
+	 * Receives notifications about acknowledgements that could not be delivered.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when an acknowledgement failed after all retries, or could not be sent at all,
+		 * e.g. for a command without id.
+		 *
+		 * @param device the device the command was sent to
+		 * @param commandId the id of the command (null if the command has none)
+		 * @param response the last API response (null if the request failed with an exception)
+		 * @param error the last exception (null if the API responded with an error)
+		 */
+		void ackFailed(M2XDevice device, String commandId, M2XResponse response, Exception error);
+	}
+
+	/**
+	 * Acknowledgement of a handled command.
+	 */
+	public static final class Ack
+	{
+		final boolean processed;
+		final String jsonContent;
+
+		private Ack(boolean processed, String jsonContent)
+		{
+			this.processed = processed;
+			this.jsonContent = jsonContent;
+		}
+
+		/**
+		 * Marks the command as processed.
+		 *
+		 * @param jsonContent optional response data as JSON formatted string
+		 * @return the acknowledgement
+		 */
+		public static Ack process(String jsonContent) { return new Ack(true, jsonContent); }
+
+		/**
+		 * Marks the command as rejected.
+		 *
+		 * @param jsonContent optional response data as JSON formatted string
+		 * @return the acknowledgement
+		 */
+		public static Ack reject(String jsonContent) { return new Ack(false, jsonContent); }
+	}
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	public static final int DEFAULT_ACK_CONCURRENCY = 4;
+
+	/**
+	 * The number of attempts made to deliver an acknowledgement
+	 */
+	public volatile int ackAttempts = 5;
+	/**
+	 * The delay before the first ack retry in milliseconds, doubled on each further retry
+	 */
+	public volatile long ackRetryDelay = 200;
+	/**
+	 * Optional listener notified about undeliverable acknowledgements
+	 */
+	public volatile Listener listener = null;
+
+	private static final Task STOP = new Task(null, null);
+
+	private final Handler handler;
+	private final Lane[] lanes;
+	private final ScheduledThreadPoolExecutor ackExecutor;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong acknowledged = new AtomicLong();
+	private final AtomicLong ackFailures = new AtomicLong();
+	private final AtomicInteger pendingAcks = new AtomicInteger();
+	// held to queue commands, exclusively to shut down, so no command is queued after STOP
+	private final ReadWriteLock queueing = new ReentrantReadWriteLock();
+	private volatile boolean shutdown = false;
+
+	public M2XCommandDispatcher(Handler handler, int workers)
+	{
+		this(handler, workers, DEFAULT_QUEUE_CAPACITY, DEFAULT_ACK_CONCURRENCY);
+	}
+
+	public M2XCommandDispatcher(Handler handler, int workers, int queueCapacity, int ackConcurrency)
+	{
+		assert handler != null && workers > 0 && queueCapacity > 0 && ackConcurrency > 0;
+
+		this.handler = handler;
+		this.ackExecutor = new ScheduledThreadPoolExecutor(ackConcurrency, new M2XThreadFactory("m2x-command-ack"));
+		this.lanes = new Lane[workers];
+		M2XThreadFactory threads = new M2XThreadFactory("m2x-command-worker");
+		for (int i = 0; i < workers; i++)
+		{
+			this.lanes[i] = new Lane(queueCapacity);
+			threads.newThread(this.lanes[i]).start();
+		}
+	}
+
+	/**
+	 * Fetches the commands of the given device and queues them in the order they were sent.
+	 * Blocks while the device's lane is full.
+	 *
+	 * @param device the device receiving the commands (usually accessed with the device's own API key)
+	 * @param query query parameters (optional), e.g. "status=sent"
+	 * @return the number of queued commands
+	 * @throws IOException if an input or output exception occurred
+	 * @throws InterruptedException if interrupted while waiting for space in the queue
+	 * @see <a href="https://m2x.att.com/developer/documentation/v2/commands#Device-s-List-of-Received-Commands">https://m2x.att.com/developer/documentation/v2/commands#Device-s-List-of-Received-Commands</a>
+	 */
+	public int fetch(M2XDevice device, String query) throws IOException, InterruptedException
+	{
+		M2XResponse response = device.commands(query);
+		if (!response.success())
+			throw new IOException("Unable to fetch commands, status " + response.status);
+		JSONArray commands = response.json().optJSONArray("commands");
+		if (commands == null)
+			return 0;
+
+		// the API lists the most recent commands first
+		for (int i = commands.length() - 1; i >= 0; i--)
+			submit(device, commands.getJSONObject(i));
+		return commands.length();
+	}
+
+	/**
+	 * Queues a command for handling. Blocks while the device's lane is full.
+	 *
+	 * @param device the device the command was sent to
+	 * @param command the command as returned by the API
+	 * @throws InterruptedException if interrupted while waiting for space in the queue
+	 */
+	public void submit(M2XDevice device, JSONObject command) throws InterruptedException
+	{
+		this.queueing.readLock().lockInterruptibly();
+		try
+		{
+			if (this.shutdown)
+				throw new IllegalStateException("Dispatcher is shut down");
+			laneOf(device).queue.put(new Task(device, command));
+			this.submitted.incrementAndGet();
+		}
+		finally
+		{
+			this.queueing.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Queues a command for handling, waiting up to the given time for space in the device's lane.
+	 *
+	 * @param device the device the command was sent to
+	 * @param command the command as returned by the API
+	 * @param timeout how long to wait for space in the queue
+	 * @param unit the unit of the timeout argument
+	 * @return true if the command was queued, false if the queue stayed full
+	 * @throws InterruptedException if interrupted while waiting for space in the queue
+	 */
+	public boolean offer(M2XDevice device, JSONObject command, long timeout, TimeUnit unit) throws InterruptedException
+	{
+		this.queueing.readLock().lockInterruptibly();
+		try
+		{
+			if (this.shutdown)
+				throw new IllegalStateException("Dispatcher is shut down");
+			if (!laneOf(device).queue.offer(new Task(device, command), timeout, unit))
+				return false;
+			this.submitted.incrementAndGet();
+			return true;
+		}
+		finally
+		{
+			this.queueing.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of commands queued since creation.
+	 *
+	 * @return the number of queued commands
+	 */
+	public long submitted() { return this.submitted.get(); }
+
+	/**
+	 * Returns the number of acknowledgements delivered successfully.
+	 *
+	 * @return the number of delivered acknowledgements
+	 */
+	public long acknowledged() { return this.acknowledged.get(); }
+
+	/**
+	 * Returns the number of acknowledgements that failed after all retries.
+	 *
+	 * @return the number of failed acknowledgements
+	 */
+	public long ackFailures() { return this.ackFailures.get(); }
+
+	/**
+	 * Stops accepting commands. Already queued commands are still handled and acknowledged.
+	 */
+	public void shutdown()
+	{
+		// waits for commands being queued, which the workers keep taking
+		this.queueing.writeLock().lock();
+		try
+		{
+			if (this.shutdown)
+				return;
+			this.shutdown = true;
+		}
+		finally
+		{
+			this.queueing.writeLock().unlock();
+		}
+		for (Lane lane : this.lanes)
+		{
+			try
+			{
+				lane.queue.put(STOP);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Shuts down and waits until all queued commands are handled and their acknowledgements delivered.
+	 * If the timeout elapses, acknowledgements still pending are abandoned and the ack threads stopped.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout argument
+	 * @return true if everything completed, false if the timeout elapsed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		shutdown();
+		boolean completed = awaitCompletion(System.nanoTime() + unit.toNanos(timeout));
+		if (completed)
+			this.ackExecutor.shutdown();
+		else
+			this.ackExecutor.shutdownNow();
+		return completed;
+	}
+
+	private boolean awaitCompletion(long deadline) throws InterruptedException
+	{
+		for (Lane lane : this.lanes)
+		{
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0 || !lane.done.await(remaining, TimeUnit.NANOSECONDS))
+				return false;
+		}
+		synchronized (this.pendingAcks)
+		{
+			while (this.pendingAcks.get() > 0)
+			{
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				TimeUnit.NANOSECONDS.timedWait(this.pendingAcks, remaining);
+			}
+		}
+		return true;
+	}
+
+	private Lane laneOf(M2XDevice device)
+	{
+		int hash = device.buildPath(null).hashCode();
+		return this.lanes[(hash & 0x7fffffff) % this.lanes.length];
+	}
+
+	private void handle(Task task)
+	{
+		Ack ack;
+		try
+		{
+			ack = this.handler.handle(task.device, task.command);
+		}
+		catch (Exception ex)
+		{
+			ack = Ack.reject(null);
+		}
+		if (ack == null)
+			return;
+
+		String commandId = task.command.optString("id", null);
+		if (commandId == null)
+		{
+			ackFailed(task.device, null, null, new IllegalArgumentException("Command without id"));
+			return;
+		}
+		this.pendingAcks.incrementAndGet();
+		try
+		{
+			this.ackExecutor.execute(new AckTask(task.device, commandId, ack));
+		}
+		catch (RejectedExecutionException ex)
+		{
+			ackFailed(task.device, commandId, null, ex);
+			ackCompleted();
+		}
+	}
+
+	private void ackFailed(M2XDevice device, String commandId, M2XResponse response, Exception error)
+	{
+		this.ackFailures.incrementAndGet();
+		Listener listener = this.listener;
+		if (listener == null)
+			return;
+		try
+		{
+			listener.ackFailed(device, commandId, response, error);
+		}
+		catch (RuntimeException ex)
+		{
+			// a failing listener must not stop the worker or ack thread calling it
+		}
+	}
+
+	private void ackCompleted()
+	{
+		if (this.pendingAcks.decrementAndGet() == 0)
+		{
+			synchronized (this.pendingAcks)
+			{
+				this.pendingAcks.notifyAll();
+			}
+		}
+	}
+
+	private static final class Task
+	{
+		final M2XDevice device;
+		final JSONObject command;
+
+		Task(M2XDevice device, JSONObject command)
+		{
+			this.device = device;
+			this.command = command;
+		}
+	}
+
+	private final class Lane implements Runnable
+	{
+		final BlockingQueue<Task> queue;
+		final CountDownLatch done = new CountDownLatch(1);
+
+		Lane(int capacity)
+		{
+			this.queue = new ArrayBlockingQueue<Task>(capacity);
+		}
+
+		public void run()
+		{
+			try
+			{
+				Task task;
+				while ((task = this.queue.take()) != STOP)
+					handle(task);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				this.done.countDown();
+			}
+		}
+	}
+
+	private final class AckTask implements Runnable
+	{
+		final M2XDevice device;
+		final String commandId;
+		final Ack ack;
+		int attempt = 0;
+
+		AckTask(M2XDevice device, String commandId, Ack ack)
+		{
+			this.device = device;
+			this.commandId = commandId;
+			this.ack = ack;
+		}
+
+		public void run()
+		{
+			this.attempt++;
+			M2XResponse response = null;
+			Exception error = null;
+			try
+			{
+				response = this.ack.processed
+					? this.device.processCommand(this.commandId, this.ack.jsonContent)
+					: this.device.rejectCommand(this.commandId, this.ack.jsonContent);
+				if (response.success())
+				{
+					acknowledged.incrementAndGet();
+					ackCompleted();
+					return;
+				}
+			}
+			catch (IOException ex)
+			{
+				error = ex;
+			}
+			catch (RuntimeException ex)
+			{
+				ackFailed(this.device, this.commandId, null, ex);
+				ackCompleted();
+				return;
+			}
+
+			boolean retriable = error != null || response.serverError() || response.status == 429;
+			if (retriable && this.attempt < ackAttempts && !ackExecutor.isShutdown())
+			{
+				try
+				{
+					ackExecutor.schedule(this, ackRetryDelay << (this.attempt - 1), TimeUnit.MILLISECONDS);
+					return;
+				}
+				catch (RejectedExecutionException ex)
+				{
+					// shut down meanwhile, fails below
+				}
+			}
+
+			ackFailed(this.device, this.commandId, error == null ? response : null, error);
+			ackCompleted();
+		}
+	}
+}
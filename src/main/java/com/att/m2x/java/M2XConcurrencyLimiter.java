@@ -0,0 +1,211 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Limits the number of requests in flight, adapting the limit to the latency and errors measured,
+ * as interceptor of a client.
+ *
+ * <pre>
+ *	client.addInterceptor(new M2XConcurrencyLimiter());
+ * </pre>
+ *
+ * Reads (GET and HEAD) and writes have separate limits. A limit grows by one request per limit
+ * worth of calls answered successfully within {@link #tolerance} times the lowest latency seen
+ * recently, and shrinks by {@link #backoffRatio} when a call fails or times out, is answered with
+ * status 429 or 5xx or takes longer (additive increase, multiplicative decrease). It shrinks at
+ * most once per round trip, for calls sent after it last shrank, so a burst of failures of
+ * concurrent calls counts as one. Requests over the limit
+ * wait for another request to finish, or are rejected with {@link M2XRejectedException} after
+ * {@link #maxWait}.
+ */
+public final class M2XConcurrencyLimiter implements M2XInterceptor
+{
+	/**
+	 * The lowest limit
+	 */
+	public volatile int minLimit = 1;
+	/**
+	 * The highest limit
+	 */
+	public volatile int maxLimit = 200;
+	/**
+	 * The factor a limit is multiplied with when overloaded
+	 */
+	public volatile double backoffRatio = 0.9;
+	/**
+	 * The factor of the lowest recent latency from which a call counts as overloaded
+	 */
+	public volatile double tolerance = 2;
+	/**
+	 * The number of calls after which the lowest latency is measured anew, so it can also grow
+	 */
+	public volatile int baselineCalls = 1000;
+	/**
+	 * The maximum time in milliseconds a request waits to be sent before being rejected
+	 */
+	public volatile long maxWait = 5000;
+
+	private final Limit reads;
+	private final Limit writes;
+
+	public M2XConcurrencyLimiter()
+	{
+		this(20);
+	}
+
+	/**
+	 * @param initialLimit the initial limit of reads and writes
+	 */
+	public M2XConcurrencyLimiter(int initialLimit)
+	{
+		assert initialLimit > 0;
+
+		this.reads = new Limit(initialLimit);
+		this.writes = new Limit(initialLimit);
+	}
+
+	public M2XResponse intercept(Chain chain) throws IOException
+	{
+		M2XRequest request = chain.request();
+		Limit limit = limitOf(request.method);
+		limit.acquire(request.path);
+
+		long start = System.nanoTime();
+		boolean overloaded = true;
+		boolean measured = false;
+		try
+		{
+			M2XResponse response = chain.proceed(request);
+			overloaded = response.status == 429 || response.serverError();
+			measured = true;
+			return response;
+		}
+		catch (IOException ex)
+		{
+			// interrupted or rejected requests say nothing about the API, timed out ones do
+			measured = ex instanceof SocketTimeoutException
+				|| !(ex instanceof InterruptedIOException || ex instanceof M2XRejectedException);
+			throw ex;
+		}
+		finally
+		{
+			limit.release(measured, overloaded, start, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the current limit of requests in flight.
+	 *
+	 * @param method the HTTP method
+	 * @return the limit of reads or writes
+	 */
+	public int limit(String method)
+	{
+		return limitOf(method).limit();
+	}
+
+	/**
+	 * Returns the number of requests in flight.
+	 *
+	 * @param method the HTTP method
+	 * @return the number of reads or writes in flight
+	 */
+	public int inFlight(String method)
+	{
+		return limitOf(method).inFlight();
+	}
+
+	private Limit limitOf(String method)
+	{
+		return method.equals("GET") || method.equals("HEAD") ? this.reads : this.writes;
+	}
+
+	private final class Limit
+	{
+		private double limit;
+		private int inFlight;
+		private long baseline = Long.MAX_VALUE;
+		private int calls;
+		// the limit shrinks at most once per round trip: calls sent before it last shrank don't count
+		private long lastDecrease = System.nanoTime();
+
+		Limit(int initialLimit)
+		{
+			this.limit = initialLimit;
+		}
+
+		synchronized int limit()
+		{
+			return (int)this.limit;
+		}
+
+		synchronized int inFlight()
+		{
+			return this.inFlight;
+		}
+
+		synchronized void acquire(String path) throws IOException
+		{
+			if (this.inFlight >= (int)this.limit)
+			{
+				long deadline = System.nanoTime() + maxWait * 1000000;
+				try
+				{
+					do
+					{
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0)
+						{
+							String endpoint = M2XClient.endpointTemplate(path);
+							throw new M2XRejectedException(endpoint, "Concurrency limit reached for " + endpoint);
+						}
+						wait(remaining / 1000000, (int)(remaining % 1000000));
+					}
+					while (this.inFlight >= (int)this.limit);
+				}
+				catch (InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the concurrency limit");
+				}
+			}
+			this.inFlight++;
+		}
+
+		synchronized void release(boolean measured, boolean overloaded, long start, long nanos)
+		{
+			this.inFlight--;
+			if (measured)
+			{
+				// the baseline is only measured anew from a successful call
+				if (++this.calls >= baselineCalls && !overloaded)
+				{
+					this.calls = 0;
+					this.baseline = nanos;
+				}
+				else if (!overloaded && nanos < this.baseline)
+					this.baseline = nanos;
+
+				int min = Math.max(1, minLimit);
+				int max = Math.max(min, maxLimit);
+				double limit = this.limit;
+				if (overloaded || nanos > this.baseline * tolerance)
+				{
+					if (start - this.lastDecrease >= 0)
+					{
+						limit *= backoffRatio;
+						this.lastDecrease = System.nanoTime();
+					}
+				}
+				else if (this.inFlight + 1 >= (int)limit / 2)
+					// only grow while at least half the limit is used
+					limit += 1 / limit;
+				this.limit = Math.min(max, Math.max(min, limit));
+			}
+			notifyAll();
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package com.att.m2x.java;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Wrapper for AT&amp;T M2X Device API
@@ -14,22 +16,19 @@ public final class M2XDevice extends M2XClassWithMetadata
 	public final String deviceId;
 	public final String serial;
 
+	private volatile M2XHandleCache<String, M2XStream> streams;
+
 	M2XDevice(M2XClient client, String deviceId, String serial)
 	{
-		super(client);
+		super(client, (deviceId != null && deviceId.length() > 0)
+			? M2XDevice.URL_PATH + "/" + deviceId
+			: M2XDevice.URL_PATH + "/serial/" + serial);
 		assert (deviceId != null && deviceId.length() > 0) || (serial != null && serial.length() > 0);
 
 		this.deviceId = deviceId;
 		this.serial = serial;
 	}
 
-	String buildPath(String path)
-	{
-		return (deviceId != null && deviceId.length() > 0)
-			? concat(M2XDevice.URL_PATH, "/", this.deviceId, path)
-			: concat(M2XDevice.URL_PATH, "/serial/", this.serial, path);
-	}
-
 	/**
 	 * Get location details of an existing Device.
 	 *
@@ -54,6 +53,19 @@ public final class M2XDevice extends M2XClassWithMetadata
 		return makeGet("/location/waypoints", query);
 	}
 
+	/**
+	 * Read Device Location History.
+	 *
+	 * @param query query parameters
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 * @see #locationHistory(String)
+	 */
+	public M2XResponse locationHistory(M2XQuery query) throws IOException
+	{
+		return makeGet("/location/waypoints", query.toString());
+	}
+
 	/**
 	 * Update the current location of the specified device.
 	 *
@@ -81,14 +93,27 @@ public final class M2XDevice extends M2XClassWithMetadata
 	}
 
 	/**
-	 * Get a wrapper to access a data stream associated with the specified Device.
+	 * Get a wrapper to access a data stream associated with the specified Device. Wrappers are cached, so repeated calls
+	 * usually return the same instance.
 	 *
 	 * @param streamName the name of the stream
 	 * @return the stream for this device with the given stream name
 	 */
 	public M2XStream stream(String streamName)
 	{
-		return new M2XStream(streamName, this, null);
+		if (streamName == null)
+			return new M2XStream(streamName, this, null);
+		M2XHandleCache<String, M2XStream> streams = this.streams;
+		if (streams == null)
+		{
+			synchronized (this)
+			{
+				if ((streams = this.streams) == null)
+					this.streams = streams = new M2XHandleCache<String, M2XStream>(M2XClient.STREAM_HANDLES);
+			}
+		}
+		M2XStream stream = streams.get(streamName);
+		return stream != null ? stream : streams.putIfAbsent(streamName, new M2XStream(streamName, this, null));
 	}
 
 	/**
@@ -166,6 +191,19 @@ public final class M2XDevice extends M2XClassWithMetadata
 		return makePost("/updates", jsonContent);
 	}
 
+	/**
+	 * Post values to multiple streams at once, writing them while they are taken from iterators.
+	 *
+	 * @param values the values by stream name, consumed while the request is sent
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 * @see <a href="https://m2x.att.com/developer/documentation/v2/device#Post-Device-Updates--Multiple-Values-to-Multiple-Streams-">https://m2x.att.com/developer/documentation/v2/device#Post-Device-Updates--Multiple-Values-to-Multiple-Streams-</a>
+	 */
+	public M2XResponse postUpdateIterators(Map<String, ? extends Iterator<M2XValue>> values) throws IOException
+	{
+		return makeStreamingRequest("POST", "/updates", null, new M2XValuesBody(values));
+	}
+
 	/**
 	 * Retrieve list of HTTP requests received lately by the specified device (up to 100 entries).
 	 *
@@ -179,6 +217,19 @@ public final class M2XDevice extends M2XClassWithMetadata
 		return makeGet("/log", query);
 	}
 
+	/**
+	 * Retrieve list of HTTP requests received lately by the specified device (up to 100 entries).
+	 *
+	 * @param query query parameters
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 * @see #log(String)
+	 */
+	public M2XResponse log(M2XQuery query) throws IOException
+	{
+		return makeGet("/log", query.toString());
+	}
+
 	/**
 	 * Retrieve the list of recent commands sent to the current device (as given by the API key).
 	 *
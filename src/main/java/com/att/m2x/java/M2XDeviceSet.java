@@ -0,0 +1,145 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A set of devices targeted by a bulk operation
+ *
+ */
+public abstract class M2XDeviceSet
+{
+	/**
+	 * The number of devices requested per page when listing devices
+	 */
+	public static final int PAGE_LIMIT = 1000;
+
+	M2XDeviceSet()
+	{
+	}
+
+	/**
+	 * Returns the ids of all devices in the set.
+	 *
+	 * @return the device ids
+	 * @throws IOException if an input or output exception occurred
+	 */
+	public abstract List<String> resolve() throws IOException;
+
+	/**
+	 * Creates a set of explicitly given devices.
+	 *
+	 * @param deviceIds the device ids
+	 * @return the device set
+	 */
+	public static M2XDeviceSet ids(final Collection<String> deviceIds)
+	{
+		final List<String> ids = Collections.unmodifiableList(new ArrayList<String>(deviceIds));
+		return new M2XDeviceSet()
+		{
+			public List<String> resolve() { return ids; }
+		};
+	}
+
+	/**
+	 * Creates a set of explicitly given devices.
+	 *
+	 * @param deviceIds the device ids
+	 * @return the device set
+	 */
+	public static M2XDeviceSet ids(String... deviceIds)
+	{
+		return ids(Arrays.asList(deviceIds));
+	}
+
+	/**
+	 * Creates a set of the devices added to a distribution.
+	 *
+	 * @param distribution the distribution
+	 * @return the device set
+	 */
+	public static M2XDeviceSet distribution(final M2XDistribution distribution)
+	{
+		return new M2XDeviceSet()
+		{
+			public List<String> resolve() throws IOException
+			{
+				List<String> ids = new ArrayList<String>();
+				int page = 1;
+				while (collect(distribution.devices(pageQuery(null, page)), ids))
+					page++;
+				return ids;
+			}
+		};
+	}
+
+	/**
+	 * Creates a set of the devices in a collection.
+	 *
+	 * @param collection the collection
+	 * @return the device set
+	 */
+	public static M2XDeviceSet collection(final M2XCollection collection)
+	{
+		return new M2XDeviceSet()
+		{
+			public List<String> resolve() throws IOException
+			{
+				List<String> ids = new ArrayList<String>();
+				int page = 1;
+				while (collect(collection.client.devices(pageQuery("collection=" + collection.collectionId, page)), ids))
+					page++;
+				return ids;
+			}
+		};
+	}
+
+	/**
+	 * Creates a set of the devices matching a device search.
+	 *
+	 * @param client the client
+	 * @param query query parameters (optional)
+	 * @param jsonContent streams, metadata, and location search parameters as JSON formatted string (optional)
+	 * @return the device set
+	 * @see M2XClient#searchDevices(String, String)
+	 */
+	public static M2XDeviceSet search(final M2XClient client, final String query, final String jsonContent)
+	{
+		return new M2XDeviceSet()
+		{
+			public List<String> resolve() throws IOException
+			{
+				List<String> ids = new ArrayList<String>();
+				int page = 1;
+				while (collect(client.searchDevices(pageQuery(query, page), jsonContent), ids))
+					page++;
+				return ids;
+			}
+		};
+	}
+
+	static String pageQuery(String query, int page)
+	{
+		String paging = "page=" + page + "&limit=" + PAGE_LIMIT;
+		return query == null || query.length() == 0 ? paging : query + "&" + paging;
+	}
+
+	// adds the ids of a device list response, returns whether further pages exist
+	static boolean collect(M2XResponse response, List<String> ids) throws IOException
+	{
+		if (!response.success())
+			throw new IOException("Unable to list devices, status " + response.status);
+		JSONObject json = response.json();
+		JSONArray devices = json.getJSONArray("devices");
+		for (int i = 0; i < devices.length(); i++)
+			ids.add(devices.getJSONObject(i).getString("id"));
+		return devices.length() > 0 && json.optInt("current_page", 1) < json.optInt("pages", 1);
+	}
+}
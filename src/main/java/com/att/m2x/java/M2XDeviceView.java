@@ -0,0 +1,74 @@
+package com.att.m2x.java;
+
+import java.util.Date;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * Typed view of device details
+ *
+ * @see <a href="https://m2x.att.com/developer/documentation/v2/device#View-Device-Details">https://m2x.att.com/developer/documentation/v2/device#View-Device-Details</a>
+ */
+public final class M2XDeviceView extends M2XView
+{
+	M2XDeviceView(JSONObject json)
+	{
+		super(json);
+	}
+
+	/**
+	 * @return the device id, null if missing
+	 */
+	public String id() { return string("id"); }
+
+	/**
+	 * @return the device name, null if missing
+	 */
+	public String name() { return string("name"); }
+
+	/**
+	 * @return the device description, null if missing
+	 */
+	public String description() { return string("description"); }
+
+	/**
+	 * @return the device serial, null if missing
+	 */
+	public String serial() { return string("serial"); }
+
+	/**
+	 * @return the device status, e.g. "enabled", null if missing
+	 */
+	public String status() { return string("status"); }
+
+	/**
+	 * @return the device visibility, "public" or "private", null if missing
+	 */
+	public String visibility() { return string("visibility"); }
+
+	/**
+	 * @return the device API key, null if missing
+	 */
+	public String key() { return string("key"); }
+
+	/**
+	 * @return the device tags
+	 */
+	public List<String> tags() { return strings("tags"); }
+
+	/**
+	 * @return the creation time, null if missing
+	 */
+	public Date created() { return date("created"); }
+
+	/**
+	 * @return the time of the last update, null if missing
+	 */
+	public Date updated() { return date("updated"); }
+
+	/**
+	 * @return the time of the last activity, null if missing
+	 */
+	public Date lastActivity() { return date("last_activity"); }
+}
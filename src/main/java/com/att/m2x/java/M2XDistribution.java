@@ -13,29 +13,39 @@ public final class M2XDistribution extends M2XClassWithMetadata
 
 	public final String distributionId;
 
+	private volatile M2XHandleCache<String, M2XStream> streams;
+
 	M2XDistribution(M2XClient client, String distributionId)
 	{
-		super(client);
+		super(client, M2XDistribution.URL_PATH + "/" + distributionId);
 		assert distributionId != null & distributionId.length() > 0;
 
 		this.distributionId = distributionId;
 	}
 
-	String buildPath(String path)
+	/**
+	 * Retrieve list of devices added to the specified distribution.
+	 *
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 * @see <a href="https://m2x.att.com/developer/documentation/v2/distribution#List-Devices-from-an-existing-Distribution">https://m2x.att.com/developer/documentation/v2/distribution#List-Devices-from-an-existing-Distribution</a>
+	 */
+	public M2XResponse devices() throws IOException
 	{
-		return concat(M2XDistribution.URL_PATH, "/", this.distributionId, path);
+		return devices(null);
 	}
 
 	/**
 	 * Retrieve list of devices added to the specified distribution.
 	 *
+	 * @param query query parameters (optional), e.g. "page=2&amp;limit=100"
 	 * @return the API response
 	 * @throws IOException if an input or output exception occurred
 	 * @see <a href="https://m2x.att.com/developer/documentation/v2/distribution#List-Devices-from-an-existing-Distribution">https://m2x.att.com/developer/documentation/v2/distribution#List-Devices-from-an-existing-Distribution</a>
 	 */
-	public M2XResponse devices() throws IOException
+	public M2XResponse devices(String query) throws IOException
 	{
-		return makeGet(M2XDevice.URL_PATH, null);
+		return makeGet(M2XDevice.URL_PATH, query);
 	}
 
 	/**
@@ -64,14 +74,26 @@ public final class M2XDistribution extends M2XClassWithMetadata
 	}
 
 	/**
-	 * Get a wrapper to access a data stream associated with the specified distribution
+	 * Get a wrapper to access a data stream associated with the specified distribution. Wrappers are cached, so repeated calls
+	 * usually return the same instance.
 	 *
 	 * @param streamName the stream name
 	 * @return the stream for this distribution with the given stream name
 	 */
 	public M2XStream stream(String streamName)
 	{
-		return new M2XStream(streamName, null, this);
+		if (streamName == null)
+			return new M2XStream(streamName, null, this);
+		M2XHandleCache<String, M2XStream> streams = this.streams;
+		if (streams == null)
+		{
+			synchronized (this)
+			{
+				if ((streams = this.streams) == null)
+					this.streams = streams = new M2XHandleCache<String, M2XStream>(M2XClient.STREAM_HANDLES);
+			}
+		}
+		M2XStream stream = streams.get(streamName);
+		return stream != null ? stream : streams.putIfAbsent(streamName, new M2XStream(streamName, null, this));
 	}
-
 }
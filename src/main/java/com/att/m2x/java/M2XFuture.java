@@ -0,0 +1,37 @@
+package com.att.m2x.java;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A future completed explicitly by the client's background workers
+ *
+ */
+final class M2XFuture<V> extends FutureTask<V>
+{
+	private static final Callable<Object> NOTHING = new Callable<Object>()
+	{
+		public Object call() { return null; }
+	};
+
+	@SuppressWarnings("unchecked")
+	M2XFuture()
+	{
+		super((Callable<V>)NOTHING);
+	}
+
+	void complete(V value)
+	{
+		set(value);
+	}
+
+	void fail(Throwable error)
+	{
+		setException(error);
+	}
+
+	public void run()
+	{
+		// completed only through complete() and fail()
+	}
+}
@@ -0,0 +1,86 @@
+package com.att.m2x.java;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded concurrent cache of immutable handles, such as devices and streams.
+ *
+ * Entries are kept in two generations: once the current generation is full it becomes the
+ * previous one, and the handles used since are promoted back. Handles not used for a generation
+ * are dropped, which approximates least recently used eviction without bookkeeping on reads.
+ *
+ * @param <K> the key type
+ * @param <V> the handle type
+ */
+final class M2XHandleCache<K, V>
+{
+	private final int capacity;
+	private volatile ConcurrentHashMap<K, V> current;
+	private volatile ConcurrentHashMap<K, V> previous;
+
+	/**
+	 * @param capacity the number of handles per generation
+	 */
+	M2XHandleCache(int capacity)
+	{
+		assert capacity > 0;
+
+		this.capacity = capacity;
+		this.current = new ConcurrentHashMap<K, V>();
+		this.previous = new ConcurrentHashMap<K, V>();
+	}
+
+	/**
+	 * @param key the key
+	 * @return the cached handle, null if there is none
+	 */
+	V get(K key)
+	{
+		V value = this.current.get(key);
+		if (value == null)
+		{
+			value = this.previous.get(key);
+			if (value != null)
+				value = putIfAbsent(key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * @param key the key
+	 * @param value the handle
+	 * @return the handle cached for the key, the given one if there was none
+	 */
+	V putIfAbsent(K key, V value)
+	{
+		ConcurrentHashMap<K, V> map = this.current;
+		V existing = map.putIfAbsent(key, value);
+		if (existing != null)
+			return existing;
+		if (map.size() > this.capacity)
+			rotate(map);
+		return value;
+	}
+
+	private synchronized void rotate(ConcurrentHashMap<K, V> full)
+	{
+		if (this.current != full)
+			return;
+		this.previous = full;
+		this.current = new ConcurrentHashMap<K, V>();
+	}
+
+	/**
+	 * @return the number of cached handles, approximately
+	 */
+	int size()
+	{
+		return this.current.size() + this.previous.size();
+	}
+
+	synchronized void clear()
+	{
+		this.previous = new ConcurrentHashMap<K, V>();
+		this.current = new ConcurrentHashMap<K, V>();
+	}
+}
@@ -0,0 +1,123 @@
+package com.att.m2x.java;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values.
+ *
+ * Values are counted in log-linear buckets (32 sub-buckets for the smallest values, then 16 per
+ * power of two, as in HdrHistogram), so percentiles are accurate to about 6% over the whole long
+ * range with a fixed footprint.
+ * Recording is a few atomic increments and never allocates.
+ */
+public final class M2XHistogram
+{
+	private static final int SUB_BUCKETS = 32;
+	private static final int HALF = SUB_BUCKETS / 2;
+	private static final int BUCKETS = SUB_BUCKETS + 58 * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value, negative values are recorded as 0.
+	 *
+	 * @param value the value
+	 */
+	public void record(long value)
+	{
+		if (value < 0)
+			value = 0;
+		this.counts.incrementAndGet(indexOf(value));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		long current;
+		while (value > (current = this.max.get()) && !this.max.compareAndSet(current, value))
+		{
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return the number of values
+	 */
+	public long count() { return this.count.get(); }
+
+	/**
+	 * Returns the largest recorded value.
+	 *
+	 * @return the maximum
+	 */
+	public long max() { return this.max.get(); }
+
+	/**
+	 * Returns the mean of the recorded values.
+	 *
+	 * @return the mean, 0 if nothing was recorded
+	 */
+	public double mean()
+	{
+		long count = this.count.get();
+		return count == 0 ? 0 : (double)this.sum.get() / count;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the recorded values fall.
+	 *
+	 * @param percentile the percentile (0 to 100)
+	 * @return the upper bound of the bucket containing the percentile, 0 if nothing was recorded
+	 */
+	public long percentile(double percentile)
+	{
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			total += snapshot[i] = this.counts.get(i);
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(total * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBoundOf(i), this.max.get());
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * Clears all recorded values.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			this.counts.set(i, 0);
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+	}
+
+	static int indexOf(long value)
+	{
+		if (value < SUB_BUCKETS)
+			return (int)value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+		return SUB_BUCKETS + (shift - 1) * HALF + (int)(value >>> shift) - HALF;
+	}
+
+	static long upperBoundOf(int index)
+	{
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long sub = (index - SUB_BUCKETS) % HALF + HALF;
+		long bound = ((sub + 1) << shift) - 1;
+		return bound < 0 ? Long.MAX_VALUE : bound;
+	}
+}
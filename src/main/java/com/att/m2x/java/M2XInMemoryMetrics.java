@@ -0,0 +1,167 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps request measurements in memory, per endpoint template.
+ *
+ * <pre>
+ *	M2XInMemoryMetrics metrics = new M2XInMemoryMetrics();
+ *	client.metrics = metrics;
+ *	...
+ *	long p99 = metrics.endpoint("/devices/:id/streams/:name/values").total.percentile(99);
+ * </pre>
+ */
+public final class M2XInMemoryMetrics implements M2XMetrics
+{
+	/**
+	 * Measurements of a single endpoint template. Latencies are recorded in nanoseconds.
+	 */
+	public static final class Endpoint
+	{
+		public final M2XHistogram connect = new M2XHistogram();
+		public final M2XHistogram firstByte = new M2XHistogram();
+		public final M2XHistogram total = new M2XHistogram();
+		public final AtomicLong bytesSent = new AtomicLong();
+		public final AtomicLong bytesReceived = new AtomicLong();
+		public final AtomicLong failures = new AtomicLong();
+		public final AtomicLong retries = new AtomicLong();
+		public final AtomicInteger inFlight;
+		private final AtomicLongArray statusClasses = new AtomicLongArray(6);
+
+		Endpoint()
+		{
+			this(new AtomicInteger());
+		}
+
+		Endpoint(AtomicInteger inFlight)
+		{
+			this.inFlight = inFlight;
+		}
+
+		/**
+		 * Returns the number of responses with a status of the given class.
+		 *
+		 * @param statusClass the status class (1 to 5, e.g. 5 for 5xx)
+		 * @return the number of responses
+		 */
+		public long responses(int statusClass)
+		{
+			return statusClass > 0 && statusClass < 6 ? this.statusClasses.get(statusClass) : 0;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+	/**
+	 * Returns the measurements of an endpoint template.
+	 *
+	 * @param template the endpoint template
+	 * @return the measurements, created if missing
+	 */
+	public Endpoint endpoint(String template)
+	{
+		Endpoint endpoint = this.endpoints.get(template);
+		if (endpoint == null)
+		{
+			endpoint = new Endpoint();
+			Endpoint existing = this.endpoints.putIfAbsent(template, endpoint);
+			if (existing != null)
+				endpoint = existing;
+		}
+		return endpoint;
+	}
+
+	/**
+	 * Returns the measurements of all endpoints requested so far.
+	 *
+	 * @return the measurements by endpoint template, sorted by template
+	 */
+	public Map<String, Endpoint> endpoints()
+	{
+		return new TreeMap<String, Endpoint>(this.endpoints);
+	}
+
+	/**
+	 * Clears all measurements, except the numbers of requests in flight.
+	 */
+	public void reset()
+	{
+		// requests in flight complete on the new measurements, so the gauge is kept
+		for (Map.Entry<String, Endpoint> entry : this.endpoints.entrySet())
+			entry.setValue(new Endpoint(entry.getValue().inFlight));
+	}
+
+	/**
+	 * Formats a summary line per endpoint with request counts and total latency percentiles in milliseconds.
+	 *
+	 * @return the summary
+	 */
+	public String report()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Endpoint> entry : endpoints().entrySet())
+		{
+			Endpoint endpoint = entry.getValue();
+			sb.append(entry.getKey())
+				.append(" count=").append(endpoint.total.count())
+				.append(" 2xx=").append(endpoint.responses(2))
+				.append(" 4xx=").append(endpoint.responses(4))
+				.append(" 5xx=").append(endpoint.responses(5))
+				.append(" failures=").append(endpoint.failures.get())
+				.append(" retries=").append(endpoint.retries.get())
+				.append(" inFlight=").append(endpoint.inFlight.get())
+				.append(" p50=").append(millis(endpoint.total.percentile(50)))
+				.append(" p99=").append(millis(endpoint.total.percentile(99)))
+				.append(" max=").append(millis(endpoint.total.max()))
+				.append(" sent=").append(endpoint.bytesSent.get())
+				.append(" received=").append(endpoint.bytesReceived.get())
+				.append('\n');
+		}
+		return sb.toString();
+	}
+
+	public void requestStarted(String endpoint, String method)
+	{
+		endpoint(endpoint).inFlight.incrementAndGet();
+	}
+
+	public void requestCompleted(String endpoint, String method, int status, long connectNanos, long firstByteNanos,
+		long totalNanos, long bytesSent, long bytesReceived)
+	{
+		Endpoint measurements = endpoint(endpoint);
+		measurements.inFlight.decrementAndGet();
+		measurements.connect.record(connectNanos);
+		measurements.firstByte.record(firstByteNanos);
+		measurements.total.record(totalNanos);
+		measurements.bytesSent.addAndGet(bytesSent);
+		measurements.bytesReceived.addAndGet(bytesReceived);
+		int statusClass = status / 100;
+		if (statusClass > 0 && statusClass < 6)
+			measurements.statusClasses.incrementAndGet(statusClass);
+	}
+
+	public void requestFailed(String endpoint, String method, long totalNanos, IOException error)
+	{
+		Endpoint measurements = endpoint(endpoint);
+		measurements.inFlight.decrementAndGet();
+		measurements.failures.incrementAndGet();
+	}
+
+	public void requestRetried(String endpoint, String method)
+	{
+		endpoint(endpoint).retries.incrementAndGet();
+	}
+
+	private static String millis(long nanos)
+	{
+		return String.format("%.1fms", nanos / (double)TimeUnit.MILLISECONDS.toNanos(1));
+	}
+}
@@ -0,0 +1,61 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+
+/**
+ * Observes, modifies or short-circuits the requests made by a client.
+ *
+ * Interceptors registered with {@link M2XClient#addInterceptor(M2XInterceptor)} are called in
+ * registration order. Each one either passes the (possibly modified) request on with
+ * {@link Chain#proceed(M2XRequest)} or returns a response of its own.
+ *
+ * <pre>
+ *	client.addInterceptor(new M2XInterceptor()
+ *	{
+ *		public M2XResponse intercept(Chain chain) throws IOException
+ *		{
+ *			return chain.proceed(chain.request().header("X-Request-Source", "gateway-7"));
+ *		}
+ *	});
+ * </pre>
+ */
+public interface M2XInterceptor
+{
+	/**
+	 * The remainder of the interceptor chain.
+	 */
+	interface Chain
+	{
+		/**
+		 * Returns the client making the request.
+		 *
+		 * @return the client
+		 */
+		M2XClient client();
+
+		/**
+		 * Returns the request passed to this interceptor.
+		 *
+		 * @return the request
+		 */
+		M2XRequest request();
+
+		/**
+		 * Passes the request to the next interceptor, or sends it if this is the last one.
+		 *
+		 * @param request the request to pass on
+		 * @return the API response
+		 * @throws IOException if an input or output exception occurred
+		 */
+		M2XResponse proceed(M2XRequest request) throws IOException;
+	}
+
+	/**
+	 * Intercepts a request.
+	 *
+	 * @param chain the chain giving access to the request and the next interceptors
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 */
+	M2XResponse intercept(Chain chain) throws IOException;
+}
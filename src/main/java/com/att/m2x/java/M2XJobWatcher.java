@@ -0,0 +1,354 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Waits for the completion of M2X jobs.
+ *
+ * All watched jobs are polled from a single scheduler thread with exponential backoff. When many
+ * jobs are due at the same time their state is looked up with a single jobs list request, and the
+ * job details are only requested for the jobs that finished.
+ *
+ * Other asynchronous results, e.g. of requests answered with status 202, are awaited the same way
+ * with a {@link Condition}.
+ *
+ * @see <a href="https://m2x.att.com/developer/documentation/v2/jobs">M2X Jobs API Documentation</a>
+ */
+public final class M2XJobWatcher
+{
+	/**
+	 * The delay before the first poll of a job in milliseconds
+	 */
+	public volatile long initialDelay = 500;
+	/**
+	 * The maximum delay between two polls of a job in milliseconds
+	 */
+	public volatile long maxDelay = 30000;
+	/**
+	 * The number of due jobs from which their state is looked up with one jobs list request
+	 */
+	public volatile int batchThreshold = 10;
+	/**
+	 * The number of consecutive failed polls after which a job's future fails
+	 */
+	public volatile int maxErrors = 5;
+
+	private static final long TICK = 100;
+
+	/**
+	 * A state polled until it is reached
+	 */
+	public interface Condition
+	{
+		/**
+		 * @param client the client of the watcher
+		 * @return the response showing the current state
+		 * @throws IOException if an input or output exception occurred
+		 */
+		M2XResponse poll(M2XClient client) throws IOException;
+
+		/**
+		 * @param response the response of the last poll
+		 * @return whether the state was reached
+		 */
+		boolean isMet(M2XResponse response);
+	}
+
+	private final M2XClient client;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentLinkedQueue<Job> added = new ConcurrentLinkedQueue<Job>();
+	// guarded by itself, the jobs' poll state is only used by the scheduler thread
+	private final List<Job> jobs = new ArrayList<Job>();
+
+	public M2XJobWatcher(M2XClient client)
+	{
+		this.client = client;
+		this.scheduler = new ScheduledThreadPoolExecutor(1, new M2XThreadFactory("m2x-job-watcher"));
+		this.scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run() { tick(); }
+		}, TICK, TICK, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Watches the given job until it is complete or failed.
+	 *
+	 * @param jobId the id of the job
+	 * @return a future completed with the job details response once the job reached a final state
+	 */
+	public Future<M2XResponse> watch(String jobId)
+	{
+		return watch(jobId, 0);
+	}
+
+	/**
+	 * Watches the given job until it is complete or failed.
+	 *
+	 * @param jobId the id of the job
+	 * @param expectedDuration the expected duration of the job in milliseconds, polls are never
+	 * further apart than this (0 if unknown)
+	 * @return a future completed with the job details response once the job reached a final state
+	 */
+	public Future<M2XResponse> watch(String jobId, long expectedDuration)
+	{
+		assert jobId != null;
+
+		return add(jobId, null, expectedDuration);
+	}
+
+	/**
+	 * Polls a condition until it is met.
+	 *
+	 * @param condition the condition
+	 * @param expectedDuration the expected time until the condition is met in milliseconds, polls
+	 * are never further apart than this (0 if unknown)
+	 * @return a future completed with the response meeting the condition
+	 */
+	public Future<M2XResponse> await(Condition condition, long expectedDuration)
+	{
+		assert condition != null;
+
+		return add(null, condition, expectedDuration);
+	}
+
+	private Future<M2XResponse> add(String jobId, Condition condition, long expectedDuration)
+	{
+		if (this.scheduler.isShutdown())
+			throw new IllegalStateException("Watcher is shut down");
+		long cap = expectedDuration > 0 ? Math.min(expectedDuration, this.maxDelay) : this.maxDelay;
+		Job job = new Job(jobId, condition, Math.min(this.initialDelay, cap), cap);
+		this.added.add(job);
+		return job.future;
+	}
+
+	/**
+	 * Returns the number of jobs not yet in a final state.
+	 *
+	 * @return the number of watched jobs
+	 */
+	public int pending()
+	{
+		int pending = this.added.size();
+		synchronized (this.jobs)
+		{
+			// completed jobs are only removed on the next tick
+			for (Job job : this.jobs)
+				if (!job.future.isDone())
+					pending++;
+		}
+		return pending;
+	}
+
+	/**
+	 * Stops watching and cancels the futures of all pending jobs.
+	 */
+	public void shutdown()
+	{
+		this.scheduler.shutdownNow();
+		Job job;
+		while ((job = this.added.poll()) != null)
+			job.future.cancel(false);
+		synchronized (this.jobs)
+		{
+			for (Job pending : this.jobs)
+				pending.future.cancel(false);
+		}
+	}
+
+	static boolean isFinished(String state)
+	{
+		return "complete".equals(state) || "failed".equals(state);
+	}
+
+	// runs periodically, so must not throw: an exception would cancel all further ticks
+	private void tick()
+	{
+		List<Job> due = new ArrayList<Job>();
+		int watched;
+		// the polls are made outside the lock, so watch() and pending() do not wait for them
+		synchronized (this.jobs)
+		{
+			Job job;
+			while ((job = this.added.poll()) != null)
+				this.jobs.add(job);
+
+			long now = System.currentTimeMillis();
+			for (Iterator<Job> it = this.jobs.iterator(); it.hasNext(); )
+			{
+				job = it.next();
+				if (job.future.isDone())
+					it.remove();
+				else if (job.nextPoll <= now)
+					due.add(job);
+			}
+			watched = this.jobs.size();
+		}
+		if (due.isEmpty())
+			return;
+
+		int jobs = 0;
+		for (Job job : due)
+			if (job.condition == null)
+				jobs++;
+		if (jobs >= this.batchThreshold)
+			due = pollBatch(due, watched);
+		for (Job job : due)
+		{
+			try
+			{
+				poll(job);
+			}
+			catch (RuntimeException ex)
+			{
+				// e.g. an unexpected payload, fails this job only
+				job.future.fail(ex);
+			}
+		}
+	}
+
+	// returns the jobs which still need to be polled one by one
+	private List<Job> pollBatch(List<Job> due, int watched)
+	{
+		Map<String, String> states = new HashMap<String, String>();
+		try
+		{
+			M2XResponse response = this.client.jobs("limit=" + Math.max(due.size(), watched));
+			JSONObject json = response.success() ? response.json() : null;
+			JSONArray list = json == null ? null : json.optJSONArray("jobs");
+			if (list == null)
+				return due;
+			for (int i = 0; i < list.length(); i++)
+			{
+				JSONObject item = list.getJSONObject(i);
+				states.put(item.getString("id"), item.optString("state"));
+			}
+		}
+		catch (IOException ex)
+		{
+			return due;
+		}
+		catch (RuntimeException ex)
+		{
+			// unexpected list payload, the jobs are polled one by one instead
+			return due;
+		}
+
+		List<Job> remaining = new ArrayList<Job>();
+		for (Job job : due)
+		{
+			String state = job.condition == null ? states.get(job.id) : null;
+			if (state == null || isFinished(state))
+				remaining.add(job);
+			else
+				job.backOff();
+		}
+		return remaining;
+	}
+
+	private void poll(Job job)
+	{
+		if (job.condition != null)
+		{
+			pollCondition(job);
+			return;
+		}
+
+		M2XResponse response;
+		try
+		{
+			response = this.client.jobDetails(job.id);
+		}
+		catch (IOException ex)
+		{
+			failed(job, ex);
+			return;
+		}
+
+		if (response.success())
+		{
+			JSONObject json = response.json();
+			if (json == null)
+			{
+				failed(job, new IOException("Unable to read job " + job.id + ", empty response"));
+				return;
+			}
+			job.errors = 0;
+			if (isFinished(json.optString("state")))
+				job.future.complete(response);
+			else
+				job.backOff();
+		}
+		else if (response.clientError() && response.status != 429)
+			job.future.fail(new IOException("Unable to read job " + job.id + ", status " + response.status));
+		else
+			failed(job, new IOException("Unable to read job " + job.id + ", status " + response.status));
+	}
+
+	private void pollCondition(Job job)
+	{
+		M2XResponse response;
+		try
+		{
+			response = job.condition.poll(this.client);
+		}
+		catch (IOException ex)
+		{
+			failed(job, ex);
+			return;
+		}
+		job.errors = 0;
+		if (job.condition.isMet(response))
+			job.future.complete(response);
+		else
+			job.backOff();
+	}
+
+	private void failed(Job job, IOException error)
+	{
+		if (++job.errors >= this.maxErrors)
+			job.future.fail(error);
+		else
+			job.backOff();
+	}
+
+	private static final class Job
+	{
+		// the job id, or null for a condition
+		final String id;
+		final Condition condition;
+		final long maxDelay;
+		final M2XFuture<M2XResponse> future = new M2XFuture<M2XResponse>();
+		long delay;
+		long nextPoll;
+		int errors = 0;
+
+		Job(String id, Condition condition, long delay, long maxDelay)
+		{
+			this.id = id;
+			this.condition = condition;
+			this.delay = delay;
+			this.maxDelay = maxDelay;
+			this.nextPoll = System.currentTimeMillis() + delay;
+		}
+
+		void backOff()
+		{
+			// at least one tick, a delay of 0 would poll on every tick
+			this.delay = Math.max(Math.min(this.delay * 2, this.maxDelay), TICK);
+			this.nextPoll = System.currentTimeMillis() + this.delay;
+		}
+	}
+}
@@ -15,17 +15,12 @@ public final class M2XKey extends M2XClass
 
 	M2XKey(M2XClient client, String key)
 	{
-		super(client);
+		super(client, M2XKey.URL_PATH + "/" + key);
 		assert key != null && key.length() > 0;
 
 		this.keyId = key;
 	}
 
-	String buildPath(String path)
-	{
-		return concat(M2XKey.URL_PATH, "/", this.keyId, path);
-	}
-
 	/**
 	 * Regenerate the specified key.
 	 *
@@ -0,0 +1,56 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+
+/**
+ * Receives measurements of the requests made by a client.
+ *
+ * Endpoints are identified by their path template, e.g. "/devices/:id/streams/:name/values", see
+ * {@link M2XClient#endpointTemplate(String)}. Implementations are called from all threads using the
+ * client and must be thread safe and fast.
+ *
+ * @see M2XInMemoryMetrics
+ */
+public interface M2XMetrics
+{
+	/**
+	 * Called before a request is sent.
+	 *
+	 * @param endpoint the endpoint template
+	 * @param method the HTTP method
+	 */
+	void requestStarted(String endpoint, String method);
+
+	/**
+	 * Called when a response was received.
+	 *
+	 * @param endpoint the endpoint template
+	 * @param method the HTTP method
+	 * @param status the HTTP status of the response
+	 * @param connectNanos the time spent connecting
+	 * @param firstByteNanos the time until the response status was received
+	 * @param totalNanos the time until the response body was read
+	 * @param bytesSent the size of the request body
+	 * @param bytesReceived the size of the response body
+	 */
+	void requestCompleted(String endpoint, String method, int status, long connectNanos, long firstByteNanos,
+		long totalNanos, long bytesSent, long bytesReceived);
+
+	/**
+	 * Called when a request failed without response.
+	 *
+	 * @param endpoint the endpoint template
+	 * @param method the HTTP method
+	 * @param totalNanos the time until the request failed
+	 * @param error the exception the request failed with
+	 */
+	void requestFailed(String endpoint, String method, long totalNanos, IOException error);
+
+	/**
+	 * Called when a request is retried.
+	 *
+	 * @param endpoint the endpoint template
+	 * @param method the HTTP method
+	 */
+	void requestRetried(String endpoint, String method);
+}
@@ -0,0 +1,43 @@
+package com.att.m2x.java;
+
+import org.json.JSONObject;
+
+/**
+ * Typed view of the pagination of a list response
+ */
+public final class M2XPageView extends M2XView
+{
+	M2XPageView(JSONObject json)
+	{
+		super(json);
+	}
+
+	/**
+	 * @return the total number of items, -1 if missing
+	 */
+	public int total() { return integer("total", -1); }
+
+	/**
+	 * @return the number of pages, -1 if missing
+	 */
+	public int pages() { return integer("pages", -1); }
+
+	/**
+	 * @return the number of items per page, -1 if missing
+	 */
+	public int limit() { return integer("limit", -1); }
+
+	/**
+	 * @return the number of this page starting at 1, -1 if missing
+	 */
+	public int currentPage() { return integer("current_page", -1); }
+
+	/**
+	 * @return whether there are pages after this one
+	 */
+	public boolean hasNext()
+	{
+		int page = currentPage();
+		return page > 0 && page < pages();
+	}
+}
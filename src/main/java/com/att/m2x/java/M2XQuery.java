@@ -0,0 +1,232 @@
+package com.att.m2x.java;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Immutable query parameters of the values, sampling, stats, location history and request log
+ * endpoints. Values are encoded when set and the query string is built once, so a query can be
+ * kept and reused for any number of requests.
+ *
+ * <pre>
+ *	M2XQuery query = new M2XQuery().start(from).end(to).limit(1000);
+ *	M2XResponse response = stream.values(query);
+ *	M2XResponse sampled = stream.sampling(query.type("avg").interval(3600));
+ *	M2XResponse csv = stream.values(query.toString(), "csv");
+ * </pre>
+ */
+public final class M2XQuery
+{
+	private static final int START = 0;
+	private static final int END = 1;
+	private static final int LIMIT = 2;
+	private static final int PAGE = 3;
+	private static final int MIN = 4;
+	private static final int MAX = 5;
+	private static final int INTERVAL = 6;
+	private static final int TYPE = 7;
+	private static final int STREAMS = 8;
+
+	private static final String[] NAMES = { "start", "end", "limit", "page", "min", "max", "interval", "type", "streams" };
+
+	// "start=", "&start=" and so on
+	private static final String[] FIRST_FRAGMENTS = new String[NAMES.length];
+	private static final String[] FRAGMENTS = new String[NAMES.length];
+
+	private static final String[] NO_PARAMS = new String[0];
+
+	private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>()
+	{
+		@Override
+		protected StringBuilder initialValue()
+		{
+			return new StringBuilder(256);
+		}
+	};
+
+	static
+	{
+		for (int i = 0; i < NAMES.length; i++)
+		{
+			FIRST_FRAGMENTS[i] = NAMES[i] + "=";
+			FRAGMENTS[i] = "&" + FIRST_FRAGMENTS[i];
+		}
+	}
+
+	// encoded values of the known parameters by index, and other parameters as encoded "name=value"
+	private final String[] values;
+	private final String[] params;
+	private String query;
+
+	public M2XQuery()
+	{
+		this(new String[NAMES.length], NO_PARAMS);
+	}
+
+	private M2XQuery(String[] values, String[] params)
+	{
+		this.values = values;
+		this.params = params;
+	}
+
+	/**
+	 * @param start the start of the time range
+	 * @return a query with the given start
+	 */
+	public M2XQuery start(Date start) { return with(START, timestamp(start.getTime())); }
+
+	/**
+	 * @param start the start of the time range in milliseconds since the epoch
+	 * @return a query with the given start
+	 */
+	public M2XQuery start(long start) { return with(START, timestamp(start)); }
+
+	/**
+	 * @param start the start of the time range as ISO 8601 timestamp
+	 * @return a query with the given start
+	 */
+	public M2XQuery start(String start) { return with(START, encode(start)); }
+
+	/**
+	 * @param end the end of the time range
+	 * @return a query with the given end
+	 */
+	public M2XQuery end(Date end) { return with(END, timestamp(end.getTime())); }
+
+	/**
+	 * @param end the end of the time range in milliseconds since the epoch
+	 * @return a query with the given end
+	 */
+	public M2XQuery end(long end) { return with(END, timestamp(end)); }
+
+	/**
+	 * @param end the end of the time range as ISO 8601 timestamp
+	 * @return a query with the given end
+	 */
+	public M2XQuery end(String end) { return with(END, encode(end)); }
+
+	/**
+	 * @param limit the maximum number of results
+	 * @return a query with the given limit
+	 */
+	public M2XQuery limit(int limit) { return with(LIMIT, Integer.toString(limit)); }
+
+	/**
+	 * @param page the page of results
+	 * @return a query with the given page
+	 */
+	public M2XQuery page(int page) { return with(PAGE, Integer.toString(page)); }
+
+	/**
+	 * @param min the minimum value of the results
+	 * @return a query with the given minimum
+	 * @throws IllegalArgumentException if the value is NaN or infinite
+	 */
+	public M2XQuery min(double min) { return with(MIN, number(min)); }
+
+	/**
+	 * @param max the maximum value of the results
+	 * @return a query with the given maximum
+	 * @throws IllegalArgumentException if the value is NaN or infinite
+	 */
+	public M2XQuery max(double max) { return with(MAX, number(max)); }
+
+	/**
+	 * @param interval the sampling interval in seconds
+	 * @return a query with the given interval
+	 */
+	public M2XQuery interval(int interval) { return with(INTERVAL, Integer.toString(interval)); }
+
+	/**
+	 * @param type the sampling type, e.g. "nth", "min", "max", "count", "avg" or "sum"
+	 * @return a query with the given type
+	 */
+	public M2XQuery type(String type) { return with(TYPE, encode(type)); }
+
+	/**
+	 * @param streams the names of the streams to return values of
+	 * @return a query with the given streams
+	 */
+	public M2XQuery streams(String... streams)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String stream : streams)
+		{
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(stream);
+		}
+		return with(STREAMS, encode(sb.toString()));
+	}
+
+	/**
+	 * @param name the name of a parameter without typed setter
+	 * @param value the value of the parameter
+	 * @return a query with the given parameter added
+	 */
+	public M2XQuery param(String name, String value)
+	{
+		StringBuilder sb = new StringBuilder();
+		M2XWriters.appendEncoded(sb, name);
+		sb.append('=');
+		M2XWriters.appendEncoded(sb, value);
+
+		String[] params = new String[this.params.length + 1];
+		System.arraycopy(this.params, 0, params, 0, this.params.length);
+		params[this.params.length] = sb.toString();
+		return new M2XQuery(this.values, params);
+	}
+
+	private M2XQuery with(int index, String value)
+	{
+		String[] values = this.values.clone();
+		values[index] = value;
+		return new M2XQuery(values, this.params);
+	}
+
+	/**
+	 * @return the encoded query string
+	 */
+	@Override
+	public String toString()
+	{
+		String query = this.query;
+		if (query == null)
+		{
+			StringBuilder sb = buffer.get();
+			sb.setLength(0);
+			for (int i = 0; i < NAMES.length; i++)
+				if (this.values[i] != null)
+					sb.append(sb.length() == 0 ? FIRST_FRAGMENTS[i] : FRAGMENTS[i]).append(this.values[i]);
+			for (String param : this.params)
+				(sb.length() == 0 ? sb : sb.append('&')).append(param);
+			this.query = query = sb.toString();
+		}
+		return query;
+	}
+
+	private static String timestamp(long millis)
+	{
+		StringBuilder sb = buffer.get();
+		sb.setLength(0);
+		return M2XTimestamps.append(sb, millis).toString();
+	}
+
+	// plain decimal notation, Double.toString would give e.g. "1.0E-5"
+	private static String number(double value)
+	{
+		if (value == (long)value)
+			return Long.toString((long)value);
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			throw new IllegalArgumentException("Value must be finite: " + value);
+		return new BigDecimal(Double.toString(value)).stripTrailingZeros().toPlainString();
+	}
+
+	private static String encode(String value)
+	{
+		StringBuilder sb = buffer.get();
+		sb.setLength(0);
+		M2XWriters.appendEncoded(sb, value);
+		return sb.toString();
+	}
+}
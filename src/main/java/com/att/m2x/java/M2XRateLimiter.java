@@ -0,0 +1,197 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the requests of all threads using a client, as interceptor of the client.
+ *
+ * <pre>
+ *	client.addInterceptor(new M2XRateLimiter(10, 20));
+ * </pre>
+ *
+ * The limiter is a lock-free token bucket, kept as the time at which the bucket will be full again
+ * (generic cell rate algorithm). Requests over budget wait for their token, or are rejected with
+ * {@link M2XRejectedException} if they would wait longer than {@link #maxWait}.
+ *
+ * The budget follows the X-RateLimit-Remaining and X-RateLimit-Reset headers of the responses:
+ * the remaining requests are spread until the reset, so clients sharing an API key slow down
+ * together, and no request is sent before the reset once none remain. A Retry-After header of a
+ * 429 response pauses the limiter likewise.
+ *
+ * Commands and their acknowledgements go first: other writes may not use the last half of the
+ * {@link #reserve}d share of the burst, reads not use any of it.
+ */
+public final class M2XRateLimiter implements M2XInterceptor
+{
+	/**
+	 * The priority of a request
+	 */
+	public enum Priority
+	{
+		/** Reads */
+		LOW,
+		/** Writes */
+		NORMAL,
+		/** Sending, processing and rejecting commands */
+		HIGH
+	}
+
+	/**
+	 * The maximum time in milliseconds a request waits for its token before being rejected
+	 */
+	public volatile long maxWait = 5000;
+	/**
+	 * The share of the burst which only high priority requests may use
+	 */
+	public volatile double reserve = 0.2;
+
+	private final int burst;
+	private final long configuredInterval;
+	// nanoseconds per request
+	private volatile long interval;
+	// the time the bucket is full at, the theoretical arrival time of the next request
+	private final AtomicLong fullAt;
+
+	/**
+	 * @param requestsPerSecond the sustained rate until the API sends rate limit headers
+	 * @param burst the number of requests which can be sent at once
+	 */
+	public M2XRateLimiter(double requestsPerSecond, int burst)
+	{
+		assert requestsPerSecond > 0;
+		assert burst > 0;
+
+		this.burst = burst;
+		this.configuredInterval = this.interval = (long)(1000000000 / requestsPerSecond);
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	public M2XResponse intercept(Chain chain) throws IOException
+	{
+		M2XRequest request = chain.request();
+		acquire(M2XClient.endpointTemplate(request.path), priorityOf(request));
+		M2XResponse response = chain.proceed(request);
+		update(response);
+		return response;
+	}
+
+	/**
+	 * Returns the priority of a request.
+	 *
+	 * @param request the request
+	 * @return the priority
+	 */
+	public static Priority priorityOf(M2XRequest request)
+	{
+		String path = request.path;
+		if (path != null && path.indexOf("/commands") >= 0 && !request.method.equals("GET"))
+			return Priority.HIGH;
+		return request.method.equals("GET") ? Priority.LOW : Priority.NORMAL;
+	}
+
+	/**
+	 * Takes a token, waiting for it if the bucket is empty.
+	 *
+	 * @param endpoint the endpoint template of the request, for the rejection
+	 * @param priority the priority of the request
+	 * @throws M2XRejectedException if the request would wait longer than {@link #maxWait}
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void acquire(String endpoint, Priority priority) throws IOException
+	{
+		long interval = this.interval;
+		long tolerance = (long)((this.burst - 1) * interval * (1 - held(priority)));
+		long maxWait = this.maxWait * 1000000;
+		long now;
+		long wait;
+		while (true)
+		{
+			now = System.nanoTime();
+			long full = this.fullAt.get();
+			long start = full - now > 0 ? full : now;
+			wait = start - tolerance - now;
+			if (wait > maxWait)
+				throw new M2XRejectedException(endpoint, "Rate limit exceeded for " + endpoint);
+			if (this.fullAt.compareAndSet(full, start + interval))
+				break;
+		}
+		if (wait > 0)
+		{
+			try
+			{
+				Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+			}
+		}
+	}
+
+	private double held(Priority priority)
+	{
+		double reserve = Math.min(1, Math.max(0, this.reserve));
+		return priority == Priority.HIGH ? 0 : priority == Priority.NORMAL ? reserve / 2 : reserve;
+	}
+
+	/**
+	 * Updates the budget from the rate limit headers of a response.
+	 *
+	 * @param response the API response
+	 */
+	public void update(M2XResponse response)
+	{
+		long now = System.nanoTime();
+		if (response.status == 429)
+			pauseUntil(now + M2XRetryPolicy.retryAfter(response) * 1000000);
+
+		long remaining = parse(response.header("X-RateLimit-Remaining"));
+		long reset = parse(response.header("X-RateLimit-Reset"));
+		if (remaining < 0 || reset < 0)
+			return;
+		// epoch seconds, or seconds until the reset for small values
+		long untilReset = reset > 1000000000L ? reset * 1000 - System.currentTimeMillis() : reset * 1000;
+		if (untilReset <= 0)
+		{
+			this.interval = this.configuredInterval;
+			return;
+		}
+		if (remaining == 0)
+		{
+			pauseUntil(now + untilReset * 1000000);
+			return;
+		}
+		this.interval = Math.max(this.configuredInterval, untilReset * 1000000 / remaining);
+	}
+
+	private void pauseUntil(long time)
+	{
+		// the first request may be sent at the given time, at full tolerance
+		long target = time + (this.burst - 1) * this.interval;
+		long full;
+		do
+		{
+			full = this.fullAt.get();
+			if (full - target >= 0)
+				return;
+		}
+		while (!this.fullAt.compareAndSet(full, target));
+	}
+
+	private static long parse(String value)
+	{
+		if (value == null)
+			return -1;
+		try
+		{
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException ex)
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the client rejects a request instead of sending it, e.g. while an
+ * {@link M2XCircuitBreaker} is open, or aborts its response, e.g. one larger than
+ * {@link M2XClient#maxResponseSize}.
+ */
+public class M2XRejectedException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The endpoint template of the rejected request
+	 */
+	public final String endpoint;
+
+	/**
+	 * @param endpoint the endpoint template of the rejected request
+	 * @param message the reason of the rejection
+	 */
+	public M2XRejectedException(String endpoint, String message)
+	{
+		super(message);
+		this.endpoint = endpoint;
+	}
+}
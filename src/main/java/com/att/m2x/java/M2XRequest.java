@@ -0,0 +1,85 @@
+package com.att.m2x.java;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An API request as seen by {@link M2XInterceptor}s
+ *
+ */
+public final class M2XRequest
+{
+	/**
+	 * The HTTP method (GET/POST/PUT/DELETE)
+	 */
+	public final String method;
+	/**
+	 * The API URL path (optional)
+	 */
+	public final String path;
+	/**
+	 * The API URL query parameters (optional)
+	 */
+	public final String query;
+	/**
+	 * The POST/PUT content (optional)
+	 */
+	public final String jsonContent;
+	/**
+	 * The POST/PUT content written while sending, instead of jsonContent (optional)
+	 */
+	public final M2XRequestBody body;
+	/**
+	 * Additional HTTP headers sent with the request
+	 */
+	public final Map<String, String> headers;
+
+	public M2XRequest(String method, String path, String query, String jsonContent)
+	{
+		this(method, path, query, jsonContent, null);
+	}
+
+	public M2XRequest(String method, String path, String query, String jsonContent, Map<String, String> headers)
+	{
+		this(method, path, query, jsonContent, null, headers);
+	}
+
+	private M2XRequest(String method, String path, String query, String jsonContent, M2XRequestBody body,
+		Map<String, String> headers)
+	{
+		this.method = method;
+		this.path = path;
+		this.query = query;
+		this.jsonContent = jsonContent;
+		this.body = body;
+		this.headers = headers == null || headers.isEmpty()
+			? Collections.<String, String>emptyMap()
+			: Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+	}
+
+	/**
+	 * Returns a copy of this request with an additional header.
+	 *
+	 * @param name the name of the header
+	 * @param value the value of the header
+	 * @return the new request
+	 */
+	public M2XRequest header(String name, String value)
+	{
+		Map<String, String> headers = new LinkedHashMap<String, String>(this.headers);
+		headers.put(name, value);
+		return new M2XRequest(this.method, this.path, this.query, this.jsonContent, this.body, headers);
+	}
+
+	/**
+	 * Returns a copy of this request with a streamed body replacing its content.
+	 *
+	 * @param body the body written while sending
+	 * @return the new request
+	 */
+	public M2XRequest body(M2XRequestBody body)
+	{
+		return new M2XRequest(this.method, this.path, this.query, null, body, this.headers);
+	}
+}
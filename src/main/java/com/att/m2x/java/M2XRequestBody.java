@@ -0,0 +1,22 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request body written while the request is sent, in chunks, so it is never held in memory as
+ * a whole.
+ *
+ * @see M2XClient#makeStreamingRequest(String, String, String, M2XRequestBody)
+ */
+public interface M2XRequestBody
+{
+	/**
+	 * Writes the body as UTF-8 encoded JSON. Called once per attempt, so bodies which can only be
+	 * produced once must not be retried.
+	 *
+	 * @param out the stream of the request body, closed by the client
+	 * @throws IOException if an input or output exception occurred
+	 */
+	void writeTo(OutputStream out) throws IOException;
+}
@@ -1,10 +1,19 @@
 package com.att.m2x.java;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -37,11 +46,48 @@ public final class M2XResponse
 	 */
 	public final Map<String, List<String>> headers;
 	/**
-	 * The raw response body.
+	 * The raw response body, null if the client does not decode responses or the body was too
+	 * large to keep in memory.
+	 *
+	 * @deprecated use {@link #raw()}, which also decodes bodies kept undecoded or in a temporary file
 	 */
+	@Deprecated
 	public final String raw;
 
-	private JSONObject _json = null;
+	// the undecoded body in memory or in a mapped temporary file, null for responses created from
+	// a string and once released
+	private volatile ByteBuffer body;
+	private volatile String decoded;
+	// parsed once, views are immutable and may be created more than once by racing threads
+	private volatile JSONObject _json = null;
+	private volatile M2XDeviceView device;
+	private volatile M2XStreamView stream;
+	private volatile M2XValuesView values;
+	private volatile M2XPageView page;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CHUNK_SIZE = 8192;
+	// read buffers larger than this are not kept for the next response of the thread
+	private static final int MAX_POOLED_BUFFER = 1 << 20;
+	private static final ByteBuffer EMPTY = ByteBuffer.wrap(new byte[0]);
+	// temporary files which could not be deleted while mapped, deleted once unmapped
+	private static final List<SpillFile> undeleted = new ArrayList<SpillFile>();
+
+	private static final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>()
+	{
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[CHUNK_SIZE];
+		}
+	};
+
+	// request timings in nanoseconds and transferred body sizes, reported to M2XMetrics
+	final long connectNanos;
+	final long firstByteNanos;
+	final long totalNanos;
+	final long bytesSent;
+	final long bytesReceived;
 
 	/**
 	 * Returns the parsed response body.
@@ -50,15 +96,178 @@ public final class M2XResponse
 	 */
 	public JSONObject json()
 	{
-		if (this._json != null)
-			return this._json;
-		if (this.raw == null || this.raw.isEmpty())
-			return null;
-		else
+		JSONObject json = this._json;
+		if (json != null)
+			return json;
+		synchronized (this)
+		{
+			if (this._json != null)
+				return this._json;
+			String raw = raw();
+			if (raw == null || raw.isEmpty())
+				return null;
+			else
+			{
+				this._json = json = new JSONObject(raw);
+				return json;
+			}
+		}
+	}
+
+	/**
+	 * Returns the response body as device details, e.g. of {@link M2XDevice#details()}.
+	 *
+	 * @return the typed view of the body, null if there is none
+	 */
+	public M2XDeviceView device()
+	{
+		M2XDeviceView device = this.device;
+		if (device == null)
+		{
+			JSONObject json = json();
+			if (json != null)
+				this.device = device = new M2XDeviceView(json);
+		}
+		return device;
+	}
+
+	/**
+	 * Returns the response body as stream details, e.g. of {@link M2XStream#details()}.
+	 *
+	 * @return the typed view of the body, null if there is none
+	 */
+	public M2XStreamView stream()
+	{
+		M2XStreamView stream = this.stream;
+		if (stream == null)
+		{
+			JSONObject json = json();
+			if (json != null)
+				this.stream = stream = new M2XStreamView(json);
+		}
+		return stream;
+	}
+
+	/**
+	 * Returns the response body as stream values, e.g. of {@link M2XStream#values(String, String)}.
+	 *
+	 * @return the typed view of the body, null if there is none
+	 */
+	public M2XValuesView values()
+	{
+		M2XValuesView values = this.values;
+		if (values == null)
+		{
+			JSONObject json = json();
+			if (json != null)
+				this.values = values = new M2XValuesView(json);
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the pagination of a list response, e.g. of {@link M2XClient#devices(String)}.
+	 *
+	 * @return the typed view of the body, null if there is none
+	 */
+	public M2XPageView page()
+	{
+		M2XPageView page = this.page;
+		if (page == null)
 		{
-			this._json = new JSONObject(this.raw);
-			return this._json;
+			JSONObject json = json();
+			if (json != null)
+				this.page = page = new M2XPageView(json);
 		}
+		return page;
+	}
+
+	/**
+	 * Returns the response body decoded as UTF-8, decoding it on first use if the client does not
+	 * decode responses or the body was kept in a temporary file.
+	 *
+	 * @return the raw response body, null if there is none
+	 */
+	public String raw()
+	{
+		String decoded = this.raw != null ? this.raw : this.decoded;
+		if (decoded == null)
+		{
+			ByteBuffer body = this.body;
+			if (body != null)
+				this.decoded = decoded = decode(body);
+		}
+		return decoded;
+	}
+
+	/**
+	 * Returns the response body without decoding it.
+	 *
+	 * @return a copy of the response body, null if there is none
+	 */
+	public byte[] bytes()
+	{
+		ByteBuffer body = this.body;
+		if (body != null)
+		{
+			byte[] bytes = new byte[body.remaining()];
+			body.duplicate().get(bytes);
+			return bytes;
+		}
+		String raw = raw();
+		return raw == null ? null : raw.getBytes(UTF8);
+	}
+
+	/**
+	 * Returns a stream of the response body, without copying or decoding it.
+	 *
+	 * @return the response body, null if there is none
+	 */
+	public InputStream inputStream()
+	{
+		ByteBuffer body = this.body;
+		if (body != null)
+			return new ByteBufferInputStream(body.duplicate());
+		String raw = raw();
+		return raw == null ? null : new ByteArrayInputStream(raw.getBytes(UTF8));
+	}
+
+	/**
+	 * Returns whether the body was too large to keep in memory and is kept in a temporary file.
+	 *
+	 * @return true if the body is kept in a temporary file
+	 */
+	public boolean spilled()
+	{
+		ByteBuffer body = this.body;
+		return body != null && !body.hasArray();
+	}
+
+	/**
+	 * Drops the reference to a body kept in a temporary file, so its mapping is released once
+	 * streams already returned by {@link #inputStream()} are garbage collected too. Afterwards
+	 * only what was already decoded or parsed is available.
+	 */
+	public void release()
+	{
+		ByteBuffer body = this.body;
+		if (body == null || body.hasArray())
+			return;
+		this.body = null;
+	}
+
+	/**
+	 * Returns the first value of a response header, ignoring the case of its name.
+	 *
+	 * @param name the header name
+	 * @return the header value, null if the header is missing
+	 */
+	public String header(String name)
+	{
+		for (Map.Entry<String, List<String>> header : this.headers.entrySet())
+			if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty())
+				return header.getValue().get(0);
+		return null;
 	}
 
 	/**
@@ -89,52 +298,359 @@ public final class M2XResponse
 	 */
 	public boolean error() { return this.clientError() || this.serverError(); }
 
-	M2XResponse(HttpURLConnection conn, String jsonContent)
+	/**
+	 * Creates a response without making a request, e.g. to short-circuit a request from an {@link M2XInterceptor}.
+	 *
+	 * @param requestMethod the HTTP method of API call
+	 * @param requestUrl the URL of API call
+	 * @param requestContent the content of API call (optional)
+	 * @param status the status code of the response
+	 * @param headers the headers of the response
+	 * @param raw the raw response body (optional)
+	 */
+	public M2XResponse(String requestMethod, URL requestUrl, String requestContent, int status,
+		Map<String, List<String>> headers, String raw)
+	{
+		this.requestMethod = requestMethod;
+		this.requestUrl = requestUrl;
+		this.requestContent = requestContent;
+		this.status = status;
+		this.headers = headers == null ? Collections.<String, List<String>>emptyMap() : headers;
+		this.raw = raw;
+		this.body = null;
+		this.connectNanos = 0;
+		this.firstByteNanos = 0;
+		this.totalNanos = 0;
+		this.bytesSent = 0;
+		this.bytesReceived = 0;
+	}
+
+	/**
+	 * Sends a request and reads its response.
+	 *
+	 * @param conn the connection of the request
+	 * @param client the client of the request, for its options
+	 * @param jsonContent the request body (optional)
+	 * @param body the request body written while sending, instead of jsonContent (optional)
+	 */
+	M2XResponse(HttpURLConnection conn, M2XClient client, String jsonContent, M2XRequestBody body)
 		throws IOException
 	{
+		int compressionThreshold = client.compressionThreshold;
+		long start = System.nanoTime();
 		this.requestMethod = conn.getRequestMethod();
 		this.requestUrl = conn.getURL();
 		this.requestContent = jsonContent;
 
-		if (this.requestContent != null)
+		// the body is encoded once and streamed, fixed length if known, so the connection does not buffer it
+		byte[] content = null;
+		boolean compress = false;
+		if (jsonContent != null || body != null)
 		{
+			if (jsonContent != null)
+				content = jsonContent.getBytes("UTF-8");
+			compress = compressionThreshold >= 0 && (content == null || content.length >= compressionThreshold);
 			conn.setRequestProperty("Content-Type", "application/json");
+			if (compress)
+				conn.setRequestProperty("Content-Encoding", "gzip");
+			if (content == null || compress)
+				conn.setChunkedStreamingMode(CHUNK_SIZE);
+			else
+				conn.setFixedLengthStreamingMode(content.length);
 			conn.setDoOutput(true);
-			OutputStreamWriter writer = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
+		}
+		conn.connect();
+		this.connectNanos = System.nanoTime() - start;
+
+		if (content != null || body != null)
+		{
+			CountingOutputStream counter = new CountingOutputStream(conn.getOutputStream());
+			OutputStream out = compress ? new GZIPOutputStream(counter, CHUNK_SIZE) : counter;
+			boolean written = false;
 			try
 			{
-				writer.write(jsonContent);
+				if (content != null)
+					out.write(content);
+				else
+					body.writeTo(out);
+				written = true;
 			}
 			finally
 			{
-				writer.close();
+				// closing would end a chunked body cleanly, so the server took a truncated body as complete
+				if (written)
+					out.close();
+				else
+					conn.disconnect();
 			}
+			this.bytesSent = counter.count;
 		}
+		else
+			this.bytesSent = 0;
 
 		this.status = conn.getResponseCode();
+		this.firstByteNanos = System.nanoTime() - start;
 		this.headers = conn.getHeaderFields();
 
 		InputStream in = conn.getDoInput() ?
 			(this.success() ? conn.getInputStream() : conn.getErrorStream()) : null;
 		if (in == null)
+		{
+			this.body = null;
 			this.raw = null;
+			this.bytesReceived = 0;
+		}
 		else
 		{
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			StringBuilder result = new StringBuilder();
+			CountingInputStream counter = new CountingInputStream(in);
+			String encoding = conn.getContentEncoding();
+			int memoryLimit = client.responseMemoryLimit;
+			long maxSize = Math.min(client.maxResponseSize, Integer.MAX_VALUE);
+			ByteBuffer read;
 			try
 			{
-				String line;
-				while ((line = reader.readLine()) != null)
+				read = encoding == null
+					? read(counter, conn.getContentLength(), memoryLimit, maxSize)
+					: read(decode(counter, encoding), -1, memoryLimit, maxSize);
+			}
+			finally
+			{
+				counter.close();
+			}
+			if (read == null)
+			{
+				// drop the connection instead of draining the rest of the body
+				conn.disconnect();
+				String path = this.requestUrl.getPath();
+				int version = path.indexOf(M2XClient.API_VERSION + "/");
+				String endpoint = M2XClient.endpointTemplate(version < 0 ? path : path.substring(version + M2XClient.API_VERSION.length()));
+				throw new M2XRejectedException(endpoint, "Response of " + endpoint + " larger than " + maxSize + " bytes");
+			}
+			this.body = read;
+			this.raw = client.decodeResponses && read.hasArray() ? decode(read) : null;
+			this.bytesReceived = counter.count;
+		}
+		this.totalNanos = System.nanoTime() - start;
+	}
+
+	private static String decode(ByteBuffer body)
+	{
+		if (body.hasArray())
+			return new String(body.array(), body.arrayOffset() + body.position(), body.remaining(), UTF8);
+		return UTF8.decode(body.duplicate()).toString();
+	}
+
+	/**
+	 * Reads a body into an array of its size, through the thread's read buffer if its length is
+	 * unknown, or into a mapped temporary file if larger than the memory limit.
+	 *
+	 * @return the body, null if larger than the maximum size
+	 */
+	private static ByteBuffer read(InputStream in, int length, int memoryLimit, long maxSize) throws IOException
+	{
+		if (length > maxSize)
+			return null;
+		if (length == 0)
+			return EMPTY;
+		byte[] buf = buffer.get();
+		if (length > memoryLimit)
+			return spill(in, buf, 0, maxSize);
+		if (length > 0)
+		{
+			byte[] body = new byte[length];
+			int count = 0;
+			int n;
+			while (count < length && (n = in.read(body, count, length - count)) > 0)
+				count += n;
+			// shorter than announced, keep what is there
+			return ByteBuffer.wrap(body, 0, count).slice();
+		}
+
+		int count = 0;
+		int n;
+		while ((n = in.read(buf, count, buf.length - count)) > 0)
+		{
+			count += n;
+			if (count > maxSize)
+				return null;
+			if (count > memoryLimit)
+				return spill(in, buf, count, maxSize);
+			if (count == buf.length)
+			{
+				byte[] grown = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, grown, 0, count);
+				buf = grown;
+				if (buf.length <= MAX_POOLED_BUFFER)
+					buffer.set(buf);
+			}
+		}
+		if (count == 0)
+			return EMPTY;
+		byte[] body = new byte[count];
+		System.arraycopy(buf, 0, body, 0, count);
+		return ByteBuffer.wrap(body);
+	}
+
+	/**
+	 * Writes the part of a body read so far and the rest of it to a temporary file, and maps it.
+	 * The file is deleted at once, the mapping stays valid until it is garbage collected. Where a
+	 * mapped file cannot be deleted, it is deleted by a later spill once unmapped.
+	 *
+	 * @return the mapped body, null if larger than the maximum size
+	 */
+	private static ByteBuffer spill(InputStream in, byte[] buf, int count, long maxSize) throws IOException
+	{
+		deleteUnmapped();
+		File file = File.createTempFile("m2x-response", ".tmp");
+		RandomAccessFile out = null;
+		ByteBuffer mapped = null;
+		try
+		{
+			out = new RandomAccessFile(file, "rw");
+			out.write(buf, 0, count);
+			long size = count;
+			int n;
+			while ((n = in.read(buf)) > 0)
+			{
+				size += n;
+				if (size > maxSize)
+					return null;
+				out.write(buf, 0, n);
+			}
+			mapped = out.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return mapped;
+		}
+		finally
+		{
+			if (out != null)
+				out.close();
+			if (!file.delete() && mapped != null)
+			{
+				synchronized (undeleted)
 				{
-					result.append(line);
+					undeleted.add(new SpillFile(mapped, file));
 				}
 			}
-			finally
+		}
+	}
+
+	private static void deleteUnmapped()
+	{
+		synchronized (undeleted)
+		{
+			for (Iterator<SpillFile> it = undeleted.iterator(); it.hasNext(); )
 			{
-				reader.close();
+				SpillFile file = it.next();
+				// the mapping is released some time after its buffer was collected
+				if (file.get() == null && file.file.delete())
+					it.remove();
 			}
-			this.raw = result.toString();
+		}
+	}
+
+	private static final class SpillFile extends WeakReference<ByteBuffer>
+	{
+		final File file;
+
+		SpillFile(ByteBuffer buffer, File file)
+		{
+			super(buffer);
+			this.file = file;
+		}
+	}
+
+	/**
+	 * @return the stream decoding the given content encoding
+	 */
+	private static InputStream decode(InputStream in, String encoding) throws IOException
+	{
+		if (encoding == null || !(encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")))
+			return in;
+		// bodiless responses may still claim to be compressed
+		PushbackInputStream pushback = new PushbackInputStream(in);
+		int first = pushback.read();
+		if (first < 0)
+			return pushback;
+		pushback.unread(first);
+		return new GZIPInputStream(pushback, CHUNK_SIZE);
+	}
+
+	private static final class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		public int read()
+		{
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+		}
+
+		public int read(byte[] bytes, int offset, int length)
+		{
+			if (length == 0)
+				return 0;
+			if (!this.buffer.hasRemaining())
+				return -1;
+			length = Math.min(length, this.buffer.remaining());
+			this.buffer.get(bytes, offset, length);
+			return length;
+		}
+
+		public int available()
+		{
+			return this.buffer.remaining();
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream
+	{
+		long count = 0;
+
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		public void write(int b) throws IOException
+		{
+			this.out.write(b);
+			this.count++;
+		}
+
+		public void write(byte[] buffer, int offset, int length) throws IOException
+		{
+			this.out.write(buffer, offset, length);
+			this.count += length;
+		}
+	}
+
+	private static final class CountingInputStream extends FilterInputStream
+	{
+		long count = 0;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0)
+				this.count++;
+			return b;
+		}
+
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int n = super.read(buffer, offset, length);
+			if (n > 0)
+				this.count += n;
+			return n;
 		}
 	}
 }
@@ -0,0 +1,16 @@
+package com.att.m2x.java;
+
+/**
+ * Receives the responses of the requests made by the thread it was registered on
+ *
+ * @see M2XClient#setResponseListener(M2XResponseListener)
+ */
+public interface M2XResponseListener
+{
+	/**
+	 * Called with every response received.
+	 *
+	 * @param response the API response
+	 */
+	void onResponse(M2XResponse response);
+}
@@ -0,0 +1,293 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries failed requests, as interceptor of a client.
+ *
+ * <pre>
+ *	client.addInterceptor(new M2XRetryPolicy());
+ * </pre>
+ *
+ * Requests failing with an input or output exception or with status 429 or 5xx are retried with
+ * decorrelated jitter backoff: each delay is random between the base delay and three times the
+ * previous delay, capped at the maximum delay, so clients retrying at the same time spread out.
+ * A Retry-After header is honored instead, unless it exceeds the maximum delay, in which case the
+ * response is returned.
+ *
+ * GET, PUT and DELETE are retried, POST only for the endpoints in {@link #safeWrites}. Requests
+ * which could not connect at all, including connect timeouts, are retried whatever their method.
+ * Requests with a streamed {@link M2XRequest#body}, which can only be written once, and those
+ * rejected by the client with {@link M2XRejectedException} are not retried.
+ *
+ * With {@link #hedging} enabled, a GET not answered within the 95th percentile of its endpoint's
+ * latency is sent a second time, and the first response is taken.
+ */
+public final class M2XRetryPolicy implements M2XInterceptor
+{
+	/**
+	 * The maximum number of attempts per request, including the first one
+	 */
+	public volatile int maxAttempts = 3;
+	/**
+	 * The minimum delay before retrying in milliseconds
+	 */
+	public volatile long baseDelay = 100;
+	/**
+	 * The maximum delay before retrying in milliseconds
+	 */
+	public volatile long maxDelay = 10000;
+	/**
+	 * POST endpoints which can safely be retried, as "POST " followed by the endpoint template
+	 * (see {@link M2XClient#endpointTemplate(String)}). Acknowledging commands is included.
+	 */
+	public final Set<String> safeWrites = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Whether slow GET requests are hedged
+	 */
+	public volatile boolean hedging = false;
+	/**
+	 * The latency percentile after which a GET request is hedged
+	 */
+	public volatile double hedgingPercentile = 95;
+	/**
+	 * The number of latencies measured for an endpoint before its requests are hedged
+	 */
+	public volatile int hedgingMinSamples = 100;
+
+	private final Random random = new Random();
+	private final ConcurrentHashMap<String, M2XHistogram> latencies = new ConcurrentHashMap<String, M2XHistogram>();
+	private volatile ExecutorService hedgingExecutor;
+
+	public M2XRetryPolicy()
+	{
+		this.safeWrites.add("POST /devices/:id/commands/:id/process");
+		this.safeWrites.add("POST /devices/:id/commands/:id/reject");
+	}
+
+	public M2XResponse intercept(Chain chain) throws IOException
+	{
+		M2XRequest request = chain.request();
+		String endpoint = M2XClient.endpointTemplate(request.path);
+		boolean idempotent = isIdempotent(request.method, endpoint);
+		long delay = 0;
+
+		for (int attempt = 1; ; attempt++)
+		{
+			M2XResponse response;
+			try
+			{
+				response = this.hedging && request.method.equals("GET")
+					? hedge(chain, request, endpoint)
+					: chain.proceed(request);
+			}
+			catch (IOException ex)
+			{
+				if (attempt >= this.maxAttempts || isInterrupted(ex) || ex instanceof M2XRejectedException
+					|| request.body != null || !(idempotent || isNotSent(ex)))
+					throw ex;
+				delay = nextDelay(delay);
+				retry(chain.client(), endpoint, request.method, delay);
+				continue;
+			}
+
+			if (!isRetryable(response.status) || !idempotent || request.body != null || attempt >= this.maxAttempts)
+				return response;
+			delay = nextDelay(delay);
+			long retryAfter = retryAfter(response);
+			if (retryAfter > this.maxDelay)
+				return response;
+			retry(chain.client(), endpoint, request.method, Math.max(delay, retryAfter));
+		}
+	}
+
+	/**
+	 * Stops the threads sending hedged requests.
+	 */
+	public synchronized void shutdown()
+	{
+		if (this.hedgingExecutor != null)
+			this.hedgingExecutor.shutdownNow();
+		this.hedgingExecutor = null;
+	}
+
+	private boolean isIdempotent(String method, String endpoint)
+	{
+		return method.equals("GET") || method.equals("PUT") || method.equals("DELETE") || method.equals("HEAD")
+			|| this.safeWrites.contains(method + " " + endpoint);
+	}
+
+	static boolean isRetryable(int status)
+	{
+		return status == 429 || (status >= 500 && status != 501 && status != 505);
+	}
+
+	/**
+	 * @return whether the exception shows the request was never sent
+	 */
+	static boolean isNotSent(IOException ex)
+	{
+		return ex instanceof ConnectException || ex instanceof NoRouteToHostException || ex instanceof UnknownHostException
+			|| (ex instanceof SocketTimeoutException && ex.getMessage() != null
+				&& ex.getMessage().toLowerCase(Locale.ENGLISH).startsWith("connect timed out"));
+	}
+
+	// read and connect timeouts are retried, an interrupted thread is not
+	private static boolean isInterrupted(IOException ex)
+	{
+		return (ex instanceof InterruptedIOException && !(ex instanceof SocketTimeoutException))
+			|| Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * @return the delay requested by the Retry-After header in milliseconds, 0 if there is none
+	 */
+	static long retryAfter(M2XResponse response)
+	{
+		String value = response.header("Retry-After");
+		if (value == null)
+			return 0;
+		try
+		{
+			return Math.max(0, Long.parseLong(value.trim()) * 1000);
+		}
+		catch (NumberFormatException ex)
+		{
+			try
+			{
+				@SuppressWarnings("deprecation")
+				long date = Date.parse(value);
+				return Math.max(0, date - System.currentTimeMillis());
+			}
+			catch (IllegalArgumentException invalid)
+			{
+				return 0;
+			}
+		}
+	}
+
+	private long nextDelay(long previous)
+	{
+		long base = this.baseDelay;
+		long max = Math.max(base, previous * 3);
+		long delay = base + (long)(this.random.nextDouble() * (max - base));
+		return Math.min(this.maxDelay, delay);
+	}
+
+	private static void retry(M2XClient client, String endpoint, String method, long delay) throws IOException
+	{
+		M2XMetrics metrics = client.metrics;
+		if (metrics != null)
+			metrics.requestRetried(endpoint, method);
+		try
+		{
+			Thread.sleep(delay);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry");
+		}
+	}
+
+	private M2XResponse hedge(final Chain chain, final M2XRequest request, String endpoint) throws IOException
+	{
+		M2XHistogram histogram = this.latencies.get(endpoint);
+		if (histogram == null)
+		{
+			histogram = new M2XHistogram();
+			M2XHistogram previous = this.latencies.putIfAbsent(endpoint, histogram);
+			if (previous != null)
+				histogram = previous;
+		}
+		if (histogram.count() < this.hedgingMinSamples)
+			return measure(histogram, chain.proceed(request));
+
+		CompletionService<M2XResponse> responses = new ExecutorCompletionService<M2XResponse>(executor());
+		Callable<M2XResponse> send = new Callable<M2XResponse>()
+		{
+			public M2XResponse call() throws IOException
+			{
+				return chain.proceed(request);
+			}
+		};
+		Future<M2XResponse> first = responses.submit(send);
+		Future<M2XResponse> second = null;
+		try
+		{
+			Future<M2XResponse> done = responses.poll(histogram.percentile(this.hedgingPercentile), TimeUnit.NANOSECONDS);
+			if (done == null)
+			{
+				M2XMetrics metrics = chain.client().metrics;
+				if (metrics != null)
+					metrics.requestRetried(endpoint, request.method);
+				second = responses.submit(send);
+				done = responses.take();
+			}
+			try
+			{
+				return measure(histogram, done.get());
+			}
+			catch (ExecutionException ex)
+			{
+				// the other request may still succeed
+				if (second == null)
+					throw ex;
+				return measure(histogram, responses.take().get());
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the response");
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof IOException)
+				throw (IOException)ex.getCause();
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException)ex.getCause();
+			throw new IOException(String.valueOf(ex.getCause()));
+		}
+		finally
+		{
+			first.cancel(true);
+			if (second != null)
+				second.cancel(true);
+		}
+	}
+
+	private static M2XResponse measure(M2XHistogram histogram, M2XResponse response)
+	{
+		if (response.success() && response.totalNanos > 0)
+			histogram.record(response.totalNanos);
+		return response;
+	}
+
+	private synchronized ExecutorService executor()
+	{
+		if (this.hedgingExecutor == null)
+			this.hedgingExecutor = Executors.newCachedThreadPool(new M2XThreadFactory("m2x-hedging"));
+		return this.hedgingExecutor;
+	}
+}
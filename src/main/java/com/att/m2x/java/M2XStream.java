@@ -1,6 +1,7 @@
 package com.att.m2x.java;
 
 import java.io.IOException;
+import java.util.Iterator;
 
 /**
  * Wrapper for AT&amp;T M2X Data Streams API
@@ -18,7 +19,8 @@ public final class M2XStream extends M2XClass
 
 	M2XStream(String streamName, M2XDevice device, M2XDistribution distribution)
 	{
-		super(device == null ? distribution.client : device.client);
+		super(device == null ? distribution.client : device.client,
+			(device == null ? distribution : device).buildPath(M2XStream.URL_PATH + "/" + streamName));
 		assert streamName != null & streamName.length() > 0;
 
 		this.streamName = streamName;
@@ -26,14 +28,6 @@ public final class M2XStream extends M2XClass
 		this.distribution = distribution;
 	}
 
-	String buildPath(String path)
-	{
-		path = concat(M2XStream.URL_PATH, "/", this.streamName, path);
-		return this.device == null
-			? this.distribution.buildPath(path)
-			: this.device.buildPath(path);
-	}
-
 	/**
 	* Update a data stream associated with the Device or distribution
 	* (if a stream with this name does not exist it gets created).
@@ -80,6 +74,20 @@ public final class M2XStream extends M2XClass
 		return makeGet(path, query);
 	}
 
+	/**
+	 * List values from the stream in JSON format, sorted in reverse chronological order
+	 * (most recent values first).
+	 *
+	 * @param query query parameters
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 * @see #values(String, String)
+	 */
+	public M2XResponse values(M2XQuery query) throws IOException
+	{
+		return makeGet("/values", query.toString());
+	}
+
 	/**
 	 * Sample values from the stream, sorted in reverse chronological order
 	 * (most recent values first).
@@ -100,6 +108,20 @@ public final class M2XStream extends M2XClass
 		return makeGet(path, query);
 	}
 
+	/**
+	 * Sample values from the stream in JSON format, sorted in reverse chronological order
+	 * (most recent values first).
+	 *
+	 * @param query query parameters
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 * @see #sampling(String, String)
+	 */
+	public M2XResponse sampling(M2XQuery query) throws IOException
+	{
+		return makeGet("/sampling", query.toString());
+	}
+
 	/**
 	 * Return count, min, max, average and standard deviation stats for the
 	 * values of the stream.
@@ -116,6 +138,20 @@ public final class M2XStream extends M2XClass
 		return makeGet("/stats", query);
 	}
 
+	/**
+	 * Return count, min, max, average and standard deviation stats for the
+	 * values of the stream.
+	 *
+	 * @param query query parameters
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 * @see #stats(String)
+	 */
+	public M2XResponse stats(M2XQuery query) throws IOException
+	{
+		return makeGet("/stats", query.toString());
+	}
+
 	/**
 	 * Post multiple values to the stream
 	 *
@@ -128,6 +164,19 @@ public final class M2XStream extends M2XClass
 		return makePost("/values", jsonContent);
 	}
 
+	/**
+	 * Post multiple values to the stream, writing them while they are taken from an iterator
+	 *
+	 * @param values the values, consumed while the request is sent
+	 * @return the API response
+	 * @throws IOException if an input or output exception occurred
+	 * @see <a href="https://m2x.att.com/developer/documentation/v2/device#Post-Data-Stream-Values">https://m2x.att.com/developer/documentation/v2/device#Post-Data-Stream-Values</a>
+	 */
+	public M2XResponse postValueIterator(Iterator<M2XValue> values) throws IOException
+	{
+		return makeStreamingRequest("POST", "/values", null, new M2XValuesBody(values));
+	}
+
 	/**
 	 * Delete values in a stream by a date range
 	 *
@@ -0,0 +1,64 @@
+package com.att.m2x.java;
+
+import java.util.Date;
+
+import org.json.JSONObject;
+
+/**
+ * Typed view of data stream details
+ *
+ * @see <a href="https://m2x.att.com/developer/documentation/v2/device#View-Data-Stream">https://m2x.att.com/developer/documentation/v2/device#View-Data-Stream</a>
+ */
+public final class M2XStreamView extends M2XView
+{
+	M2XStreamView(JSONObject json)
+	{
+		super(json);
+	}
+
+	/**
+	 * @return the stream name, null if missing
+	 */
+	public String name() { return string("name"); }
+
+	/**
+	 * @return the stream type, "numeric" or "alphanumeric", null if missing
+	 */
+	public String type() { return string("type"); }
+
+	/**
+	 * @return the latest value as string, null if the stream has no value
+	 */
+	public String value() { return string("value"); }
+
+	/**
+	 * @return the latest value of a numeric stream
+	 * @throws org.json.JSONException if the stream has no numeric value
+	 */
+	public double numericValue() { return this.json.getDouble("value"); }
+
+	/**
+	 * @return the time of the latest value, null if the stream has no value
+	 */
+	public Date latestValueAt() { return date("latest_value_at"); }
+
+	/**
+	 * @return the label of the unit, null if missing
+	 */
+	public String unitLabel() { return string("unit", "label"); }
+
+	/**
+	 * @return the symbol of the unit, null if missing
+	 */
+	public String unitSymbol() { return string("unit", "symbol"); }
+
+	/**
+	 * @return the creation time, null if missing
+	 */
+	public Date created() { return date("created"); }
+
+	/**
+	 * @return the time of the last update, null if missing
+	 */
+	public Date updated() { return date("updated"); }
+}
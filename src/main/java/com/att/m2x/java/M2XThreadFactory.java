@@ -0,0 +1,26 @@
+package com.att.m2x.java;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the client's background workers
+ *
+ */
+final class M2XThreadFactory implements ThreadFactory
+{
+	private final String prefix;
+	private final AtomicInteger counter = new AtomicInteger();
+
+	M2XThreadFactory(String prefix)
+	{
+		this.prefix = prefix;
+	}
+
+	public Thread newThread(Runnable runnable)
+	{
+		Thread thread = new Thread(runnable, this.prefix + "-" + this.counter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,267 @@
+package com.att.m2x.java;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * ISO 8601 timestamps as used by the API, e.g. "2015-01-01T12:30:00.000Z", formatted and parsed
+ * without date format objects or allocations. All methods are thread safe.
+ *
+ * Dates use the proleptic Gregorian calendar of ISO 8601, so they differ from SimpleDateFormat
+ * before October 1582.
+ */
+public final class M2XTimestamps
+{
+	/**
+	 * The length of formatted timestamps
+	 */
+	public static final int LENGTH = 24;
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+	// the formattable range, years 0000 to 9999
+	private static final long MIN_MILLIS = -62167219200000L;
+	private static final long MAX_MILLIS = 253402300799999L;
+
+	private static final ThreadLocal<char[]> buffer = new ThreadLocal<char[]>()
+	{
+		@Override
+		protected char[] initialValue()
+		{
+			return new char[LENGTH];
+		}
+	};
+
+	private M2XTimestamps()
+	{
+	}
+
+	/**
+	 * @param millis the milliseconds since the epoch
+	 * @return whether the time is in the years 0000 to 9999, which can be formatted into a buffer
+	 */
+	static boolean isFormattable(long millis)
+	{
+		return millis >= MIN_MILLIS && millis <= MAX_MILLIS;
+	}
+
+	/**
+	 * Formats an ISO 8601 timestamp in UTC with millisecond precision.
+	 *
+	 * @param millis the milliseconds since the epoch
+	 * @return the timestamp
+	 */
+	public static String format(long millis)
+	{
+		if (millis < MIN_MILLIS || millis > MAX_MILLIS)
+			return formatOutOfRange(millis);
+		char[] buf = new char[LENGTH];
+		format(millis, buf, 0);
+		return new String(buf);
+	}
+
+	/**
+	 * Appends an ISO 8601 timestamp in UTC with millisecond precision.
+	 *
+	 * @param sb the string being built
+	 * @param millis the milliseconds since the epoch
+	 * @return the string being built
+	 */
+	public static StringBuilder append(StringBuilder sb, long millis)
+	{
+		if (millis < MIN_MILLIS || millis > MAX_MILLIS)
+			return sb.append(formatOutOfRange(millis));
+		char[] buf = buffer.get();
+		format(millis, buf, 0);
+		return sb.append(buf, 0, LENGTH);
+	}
+
+	/**
+	 * Formats an ISO 8601 timestamp in UTC with millisecond precision into a buffer.
+	 *
+	 * @param millis the milliseconds since the epoch, in the years 0000 to 9999
+	 * @param buf the buffer, with at least {@link #LENGTH} characters from offset
+	 * @param offset the offset in the buffer
+	 * @return the offset after the timestamp
+	 * @throws IllegalArgumentException if the year is not in the range 0000 to 9999
+	 */
+	public static int format(long millis, char[] buf, int offset)
+	{
+		if (millis < MIN_MILLIS || millis > MAX_MILLIS)
+			throw new IllegalArgumentException("Timestamp out of range: " + millis);
+		long days = floorDiv(millis, MILLIS_PER_DAY);
+		int time = (int)(millis - days * MILLIS_PER_DAY);
+		long date = civilFromDays(days);
+		setDigits(buf, offset, (int)(date >> 16), 4);
+		buf[offset + 4] = '-';
+		setDigits(buf, offset + 5, (int)(date >> 8) & 0xFF, 2);
+		buf[offset + 7] = '-';
+		setDigits(buf, offset + 8, (int)date & 0xFF, 2);
+		buf[offset + 10] = 'T';
+		setDigits(buf, offset + 11, time / 3600000, 2);
+		buf[offset + 13] = ':';
+		setDigits(buf, offset + 14, time / 60000 % 60, 2);
+		buf[offset + 16] = ':';
+		setDigits(buf, offset + 17, time / 1000 % 60, 2);
+		buf[offset + 19] = '.';
+		setDigits(buf, offset + 20, time % 1000, 3);
+		buf[offset + 23] = 'Z';
+		return offset + LENGTH;
+	}
+
+	/**
+	 * Parses an ISO 8601 timestamp, e.g. "2015-01-01T12:30:00.000Z" or "2015-01-01T13:30:00+01:00".
+	 * Fractions of seconds are optional and truncated to milliseconds, timestamps without zone are
+	 * taken as UTC.
+	 *
+	 * @param timestamp the timestamp
+	 * @return the milliseconds since the epoch
+	 * @throws IllegalArgumentException if the timestamp is invalid
+	 */
+	public static long parse(CharSequence timestamp)
+	{
+		return parse(timestamp, 0, timestamp.length());
+	}
+
+	/**
+	 * Parses an ISO 8601 timestamp from a part of a string.
+	 *
+	 * @param s the string containing the timestamp
+	 * @param start the index of the timestamp
+	 * @param end the index after the timestamp
+	 * @return the milliseconds since the epoch
+	 * @throws IllegalArgumentException if the timestamp is invalid
+	 * @see #parse(CharSequence)
+	 */
+	public static long parse(CharSequence s, int start, int end)
+	{
+		if (end - start < 19 || s.charAt(start + 4) != '-' || s.charAt(start + 7) != '-'
+			|| (s.charAt(start + 10) != 'T' && s.charAt(start + 10) != 't')
+			|| s.charAt(start + 13) != ':' || s.charAt(start + 16) != ':')
+			throw invalid(s, start, end);
+		int year = digits(s, start, 4);
+		int month = digits(s, start + 5, 2);
+		int day = digits(s, start + 8, 2);
+		int hour = digits(s, start + 11, 2);
+		int minute = digits(s, start + 14, 2);
+		int second = digits(s, start + 17, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+			|| hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+			throw invalid(s, start, end);
+
+		int i = start + 19;
+		int millis = 0;
+		if (i < end && s.charAt(i) == '.')
+		{
+			int fraction = ++i;
+			for (int scale = 100; i < end && isDigit(s.charAt(i)); i++, scale /= 10)
+				millis += (s.charAt(i) - '0') * scale;
+			if (i == fraction)
+				throw invalid(s, start, end);
+		}
+
+		int offsetMinutes = 0;
+		if (i < end)
+		{
+			char c = s.charAt(i);
+			if (c == 'Z' || c == 'z')
+				i++;
+			else if (c == '+' || c == '-')
+			{
+				int hours = i + 3 <= end ? digits(s, i + 1, 2) : -1;
+				i += 3;
+				if (i < end && s.charAt(i) == ':')
+					i++;
+				int minutes = i + 2 <= end ? digits(s, i, 2) : 0;
+				if (i + 2 <= end)
+					i += 2;
+				if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59)
+					throw invalid(s, start, end);
+				offsetMinutes = (hours * 60 + minutes) * (c == '-' ? -1 : 1);
+			}
+		}
+		if (i != end)
+			throw invalid(s, start, end);
+
+		long minutes = (daysFromCivil(year, month, day) * 24 + hour) * 60 + minute - offsetMinutes;
+		return (minutes * 60 + second) * 1000 + millis;
+	}
+
+	/**
+	 * @return year &lt;&lt; 16 | month &lt;&lt; 8 | day of the days since 1970-01-01
+	 */
+	private static long civilFromDays(long days)
+	{
+		// in 400 year eras starting on March 1st
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long monthIndex = (5 * dayOfYear + 2) / 153;
+		long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return year << 16 | month << 8 | day;
+	}
+
+	private static long daysFromCivil(int year, int month, int day)
+	{
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static int daysInMonth(int year, int month)
+	{
+		if (month == 2)
+			return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+	}
+
+	private static long floorDiv(long x, long y)
+	{
+		long q = x / y;
+		return (x % y < 0) ? q - 1 : q;
+	}
+
+	private static void setDigits(char[] buf, int offset, int value, int digits)
+	{
+		for (int i = offset + digits - 1; i >= offset; i--, value /= 10)
+			buf[i] = (char)('0' + value % 10);
+	}
+
+	private static int digits(CharSequence s, int offset, int count)
+	{
+		int value = 0;
+		for (int i = offset; i < offset + count; i++)
+		{
+			char c = s.charAt(i);
+			if (!isDigit(c))
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	private static IllegalArgumentException invalid(CharSequence s, int start, int end)
+	{
+		return new IllegalArgumentException("Invalid timestamp: " + s.subSequence(start, end));
+	}
+
+	private static String formatOutOfRange(long millis)
+	{
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return df.format(new Date(millis));
+	}
+}
@@ -0,0 +1,92 @@
+package com.att.m2x.java;
+
+import java.util.Date;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A timestamped stream value, for uploads streamed from an iterator
+ *
+ * @see M2XStream#postValueIterator(java.util.Iterator)
+ * @see M2XDevice#postUpdateIterators(java.util.Map)
+ */
+public final class M2XValue
+{
+	/**
+	 * The time of the value in milliseconds since the epoch, in the years 0000 to 9999
+	 */
+	public final long timestamp;
+	/**
+	 * The value, a number or a string
+	 */
+	public final Object value;
+
+	/**
+	 * @param timestamp the time of the value in milliseconds since the epoch
+	 * @param value the numeric value
+	 * @throws IllegalArgumentException if the timestamp is not in the years 0000 to 9999
+	 * @throws JSONException if the value is NaN or infinite, which JSON cannot represent
+	 */
+	public M2XValue(long timestamp, Number value)
+	{
+		assert value != null;
+		// checked here rather than halfway through a streamed upload
+		checkTimestamp(timestamp);
+		JSONObject.testValidity(value);
+
+		this.timestamp = timestamp;
+		this.value = value;
+	}
+
+	/**
+	 * @param timestamp the time of the value in milliseconds since the epoch
+	 * @param value the alphanumeric value
+	 * @throws IllegalArgumentException if the timestamp is not in the years 0000 to 9999
+	 */
+	public M2XValue(long timestamp, String value)
+	{
+		assert value != null;
+		checkTimestamp(timestamp);
+
+		this.timestamp = timestamp;
+		this.value = value;
+	}
+
+	/**
+	 * @param timestamp the time of the value
+	 * @param value the numeric value
+	 * @throws IllegalArgumentException if the timestamp is not in the years 0000 to 9999
+	 * @throws JSONException if the value is NaN or infinite, which JSON cannot represent
+	 */
+	public M2XValue(Date timestamp, Number value)
+	{
+		this(timestamp.getTime(), value);
+	}
+
+	/**
+	 * @param timestamp the time of the value
+	 * @param value the alphanumeric value
+	 * @throws IllegalArgumentException if the timestamp is not in the years 0000 to 9999
+	 */
+	public M2XValue(Date timestamp, String value)
+	{
+		this(timestamp.getTime(), value);
+	}
+
+	private static void checkTimestamp(long timestamp)
+	{
+		if (!M2XTimestamps.isFormattable(timestamp))
+			throw new IllegalArgumentException("Timestamp out of the years 0000 to 9999: " + timestamp);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("{\"timestamp\":\"");
+		M2XTimestamps.append(sb, this.timestamp).append("\",\"value\":");
+		return sb.append(this.value instanceof String
+			? JSONObject.quote((String)this.value)
+			: JSONObject.numberToString((Number)this.value)).append('}').toString();
+	}
+}
@@ -0,0 +1,205 @@
+package com.att.m2x.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Writes values taken from iterators as JSON body, through a fixed size buffer, so the values
+ * never exist in memory at once and the first ones are sent while the rest is produced.
+ *
+ * The iterators are consumed by the first attempt, so these bodies are not replayable.
+ */
+final class M2XValuesBody implements M2XRequestBody
+{
+	private static final int BUFFER_SIZE = 8192;
+
+	// the values of a stream: {"values":[...]}, or of several streams: {"values":{"name":[...],...}}
+	private final Iterator<M2XValue> values;
+	private final Map<String, ? extends Iterator<M2XValue>> streams;
+
+	M2XValuesBody(Iterator<M2XValue> values)
+	{
+		assert values != null;
+
+		this.values = values;
+		this.streams = null;
+	}
+
+	M2XValuesBody(Map<String, ? extends Iterator<M2XValue>> streams)
+	{
+		assert streams != null;
+
+		this.values = null;
+		this.streams = streams;
+	}
+
+	public void writeTo(OutputStream out) throws IOException
+	{
+		Utf8Writer writer = new Utf8Writer(out);
+		writer.write("{\"values\":");
+		if (this.streams == null)
+			writeValues(writer, this.values);
+		else
+		{
+			writer.write('{');
+			boolean first = true;
+			for (Map.Entry<String, ? extends Iterator<M2XValue>> stream : this.streams.entrySet())
+			{
+				if (!first)
+					writer.write(',');
+				first = false;
+				JSONObject.quote(stream.getKey(), writer);
+				writer.write(':');
+				writeValues(writer, stream.getValue() == null ? Collections.<M2XValue>emptyList().iterator() : stream.getValue());
+			}
+			writer.write('}');
+		}
+		writer.write('}');
+		writer.flush();
+	}
+
+	private static void writeValues(Utf8Writer writer, Iterator<M2XValue> values) throws IOException
+	{
+		char[] timestamp = new char[M2XTimestamps.LENGTH];
+		writer.write('[');
+		boolean first = true;
+		while (values.hasNext())
+		{
+			M2XValue value = values.next();
+			writer.write(first ? "{\"timestamp\":\"" : ",{\"timestamp\":\"");
+			first = false;
+			M2XTimestamps.format(value.timestamp, timestamp, 0);
+			writer.write(timestamp, 0, timestamp.length);
+			writer.write("\",\"value\":");
+			if (value.value instanceof String)
+				JSONObject.quote((String)value.value, writer);
+			else if (value.value instanceof Integer || value.value instanceof Long)
+				writer.write(value.value.toString());
+			else
+				writer.write(JSONObject.numberToString((Number)value.value));
+			writer.write('}');
+		}
+		writer.write(']');
+	}
+
+	/**
+	 * Encodes characters as UTF-8 into a fixed buffer, written out whenever it is full.
+	 */
+	private static final class Utf8Writer extends Writer
+	{
+		private final OutputStream out;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int count;
+		private char highSurrogate;
+
+		Utf8Writer(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int c) throws IOException
+		{
+			if (c < 0x80 && this.highSurrogate == 0)
+			{
+				if (this.count == BUFFER_SIZE)
+					flushBuffer();
+				this.buffer[this.count++] = (byte)c;
+			}
+			else
+				encode((char)c);
+		}
+
+		@Override
+		public void write(String str) throws IOException
+		{
+			for (int i = 0; i < str.length(); i++)
+				write(str.charAt(i));
+		}
+
+		@Override
+		public void write(String str, int offset, int length) throws IOException
+		{
+			for (int i = offset; i < offset + length; i++)
+				write(str.charAt(i));
+		}
+
+		@Override
+		public void write(char[] chars, int offset, int length) throws IOException
+		{
+			for (int i = offset; i < offset + length; i++)
+				write(chars[i]);
+		}
+
+		private void encode(char c) throws IOException
+		{
+			if (this.count > BUFFER_SIZE - 4)
+				flushBuffer();
+			if (this.highSurrogate != 0)
+			{
+				char high = this.highSurrogate;
+				this.highSurrogate = 0;
+				if (Character.isLowSurrogate(c))
+				{
+					int codePoint = Character.toCodePoint(high, c);
+					this.buffer[this.count++] = (byte)(0xF0 | codePoint >> 18);
+					this.buffer[this.count++] = (byte)(0x80 | (codePoint >> 12 & 0x3F));
+					this.buffer[this.count++] = (byte)(0x80 | (codePoint >> 6 & 0x3F));
+					this.buffer[this.count++] = (byte)(0x80 | (codePoint & 0x3F));
+					return;
+				}
+				// unpaired surrogate, replaced like String.getBytes does
+				this.buffer[this.count++] = '?';
+				write(c);
+				return;
+			}
+			if (c < 0x80)
+				this.buffer[this.count++] = (byte)c;
+			else if (c < 0x800)
+			{
+				this.buffer[this.count++] = (byte)(0xC0 | c >> 6);
+				this.buffer[this.count++] = (byte)(0x80 | (c & 0x3F));
+			}
+			else if (Character.isHighSurrogate(c))
+				this.highSurrogate = c;
+			else if (Character.isLowSurrogate(c))
+				this.buffer[this.count++] = '?';
+			else
+			{
+				this.buffer[this.count++] = (byte)(0xE0 | c >> 12);
+				this.buffer[this.count++] = (byte)(0x80 | (c >> 6 & 0x3F));
+				this.buffer[this.count++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+
+		private void flushBuffer() throws IOException
+		{
+			this.out.write(this.buffer, 0, this.count);
+			this.count = 0;
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			if (this.highSurrogate != 0)
+			{
+				this.highSurrogate = 0;
+				write('?');
+			}
+			flushBuffer();
+			this.out.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.att.m2x.java;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Typed view of a batch of stream values. Values are converted when accessed, so reading the
+ * timestamps or values of a large batch does not create an object per value.
+ *
+ * @see <a href="https://m2x.att.com/developer/documentation/v2/device#List-Data-Stream-Values">https://m2x.att.com/developer/documentation/v2/device#List-Data-Stream-Values</a>
+ */
+public final class M2XValuesView extends M2XView implements Iterable<M2XValue>
+{
+	private final JSONArray values;
+
+	M2XValuesView(JSONObject json)
+	{
+		super(json);
+		JSONArray values = json.optJSONArray("values");
+		this.values = values == null ? new JSONArray() : values;
+	}
+
+	/**
+	 * @return the number of values
+	 */
+	public int size() { return this.values.length(); }
+
+	/**
+	 * @param index the index of the value
+	 * @return the time of the value in milliseconds since the epoch
+	 */
+	public long timestamp(int index)
+	{
+		return M2XTimestamps.parse(this.values.getJSONObject(index).getString("timestamp"));
+	}
+
+	/**
+	 * @param index the index of the value
+	 * @return the numeric value
+	 * @throws org.json.JSONException if the value is not numeric
+	 */
+	public double number(int index)
+	{
+		return this.values.getJSONObject(index).getDouble("value");
+	}
+
+	/**
+	 * @param index the index of the value
+	 * @return the value as string
+	 */
+	public String string(int index)
+	{
+		return this.values.getJSONObject(index).get("value").toString();
+	}
+
+	/**
+	 * @param index the index of the value
+	 * @return the value with its timestamp
+	 */
+	public M2XValue value(int index)
+	{
+		Object value = this.values.getJSONObject(index).get("value");
+		return value instanceof Number
+			? new M2XValue(timestamp(index), (Number)value)
+			: new M2XValue(timestamp(index), value.toString());
+	}
+
+	/**
+	 * @return the start of the queried time range, null if missing
+	 */
+	public Date start() { return date("start"); }
+
+	/**
+	 * @return the end of the queried time range, null if missing
+	 */
+	public Date end() { return date("end"); }
+
+	/**
+	 * @return the limit of the query, -1 if missing
+	 */
+	public int limit() { return integer("limit", -1); }
+
+	public Iterator<M2XValue> iterator()
+	{
+		return new Iterator<M2XValue>()
+		{
+			private int next = 0;
+
+			public boolean hasNext() { return this.next < size(); }
+
+			public M2XValue next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return value(this.next++);
+			}
+
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+}
@@ -0,0 +1,80 @@
+package com.att.m2x.java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Typed read access to a parsed response body. Fields are converted when requested, views are
+ * immutable and can be shared by any number of threads, as long as the body is not modified through
+ * {@link M2XResponse#json()}.
+ *
+ * @see M2XResponse#device()
+ * @see M2XResponse#stream()
+ * @see M2XResponse#values()
+ * @see M2XResponse#page()
+ */
+public abstract class M2XView
+{
+	final JSONObject json;
+
+	M2XView(JSONObject json)
+	{
+		assert json != null;
+
+		this.json = json;
+	}
+
+	String string(String key)
+	{
+		return this.json.isNull(key) ? null : this.json.get(key).toString();
+	}
+
+	String string(String object, String key)
+	{
+		JSONObject nested = this.json.optJSONObject(object);
+		return nested == null || nested.isNull(key) ? null : nested.get(key).toString();
+	}
+
+	Date date(String key)
+	{
+		String value = string(key);
+		return value == null ? null : new Date(M2XTimestamps.parse(value));
+	}
+
+	int integer(String key, int missing)
+	{
+		return this.json.isNull(key) ? missing : this.json.getInt(key);
+	}
+
+	List<String> strings(String key)
+	{
+		JSONArray array = this.json.optJSONArray(key);
+		if (array == null)
+			return Collections.emptyList();
+		List<String> strings = new ArrayList<String>(array.length());
+		for (int i = 0; i < array.length(); i++)
+			strings.add(array.get(i).toString());
+		return Collections.unmodifiableList(strings);
+	}
+
+	/**
+	 * Returns a copy of the JSON object viewed.
+	 *
+	 * @return the copy, which may be modified
+	 */
+	public JSONObject json()
+	{
+		return new JSONObject(this.json.toString());
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.json.toString();
+	}
+}
@@ -0,0 +1,93 @@
+package com.att.m2x.java;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a fixed pool while keeping at most a given number of them submitted
+ *
+ */
+final class M2XWorkers
+{
+	private final int concurrency;
+	private final Semaphore window;
+	private final ExecutorService executor;
+
+	M2XWorkers(String name, int concurrency)
+	{
+		assert concurrency > 0;
+
+		this.concurrency = concurrency;
+		this.window = new Semaphore(concurrency);
+		this.executor = Executors.newFixedThreadPool(concurrency, new M2XThreadFactory(name));
+	}
+
+	/**
+	 * Submits a task, blocking while the window is full.
+	 */
+	void submit(final Runnable task) throws InterruptedException
+	{
+		this.window.acquire();
+		try
+		{
+			this.executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						task.run();
+					}
+					finally
+					{
+						window.release();
+					}
+				}
+			});
+		}
+		catch (RuntimeException ex)
+		{
+			this.window.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Waits until all submitted tasks are finished.
+	 */
+	void await() throws InterruptedException
+	{
+		this.window.acquire(this.concurrency);
+		this.window.release(this.concurrency);
+	}
+
+	void shutdown()
+	{
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Shuts down and waits until all submitted tasks are finished, even if interrupted.
+	 */
+	void shutdownAndAwait()
+	{
+		this.executor.shutdown();
+		boolean interrupted = false;
+		while (true)
+		{
+			try
+			{
+				if (this.executor.awaitTermination(1, TimeUnit.MINUTES))
+					break;
+			}
+			catch (InterruptedException ex)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,31 @@
+package com.att.m2x.java;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a parameter class for which the M2X annotation processor (the java-processor artifact)
+ * generates an {@link M2XWriter}, used by {@link M2XClient#objectToQuery(Object)} and
+ * {@link M2XClient#jsonSerialize(Object)} instead of reflection.
+ *
+ * The query contains the public instance fields of the class, the JSON its public instance
+ * getters, as with the reflective serialization. The class must not be private.
+ *
+ * <pre>
+ *	&#64;M2XWritable
+ *	public class ValuesQuery
+ *	{
+ *		public String start;
+ *		public int limit;
+ *	}
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface M2XWritable
+{
+}
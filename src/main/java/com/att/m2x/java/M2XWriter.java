@@ -0,0 +1,33 @@
+package com.att.m2x.java;
+
+import org.json.JSONWriter;
+
+/**
+ * Writes objects of a type to query strings and JSON without reflection. Implementations are
+ * generated for classes annotated with {@link M2XWritable} and found through {@link M2XWriters}.
+ *
+ * @param <T> the type written
+ */
+public interface M2XWriter<T>
+{
+	/**
+	 * @return the type written
+	 */
+	Class<T> type();
+
+	/**
+	 * Appends the object as query parameters, separated from existing parameters by '&amp;'.
+	 *
+	 * @param obj the object
+	 * @param sb the query being built
+	 */
+	void writeQuery(T obj, StringBuilder sb);
+
+	/**
+	 * Writes the object as JSON object.
+	 *
+	 * @param obj the object
+	 * @param writer the JSON being built
+	 */
+	void writeJson(T obj, JSONWriter writer);
+}
@@ -0,0 +1,227 @@
+package com.att.m2x.java;
+
+import java.nio.charset.Charset;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.json.JSONWriter;
+
+/**
+ * Registry of the {@link M2XWriter}s consulted by {@link M2XClient#objectToQuery(Object)} and
+ * {@link M2XClient#jsonSerialize(Object)} before falling back to reflection.
+ *
+ * Generated writers are listed in META-INF/services/com.att.m2x.java.M2XWriter by the annotation
+ * processor, and those visible to the class loader of this class are registered when it is
+ * initialized. Writers of other class loaders, e.g. of a web application, are registered with
+ * {@link #registerAll(ClassLoader)} and unregistered with {@link #unregister(Class)} when the
+ * loader is discarded. Writers are never looked up by reflection, so no configuration is needed
+ * for native images.
+ *
+ * The static helpers are used by the generated writers.
+ */
+public final class M2XWriters
+{
+	/**
+	 * Suffix of the generated writer class names, e.g. "com.example.Query_M2XWriter" or
+	 * "com.example.Outer_Query_M2XWriter" for the nested class "com.example.Outer.Query"
+	 */
+	public static final String WRITER_SUFFIX = "_M2XWriter";
+
+	private static final ConcurrentHashMap<Class<?>, M2XWriter<?>> writers = new ConcurrentHashMap<Class<?>, M2XWriter<?>>();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	static
+	{
+		try
+		{
+			registerAll(M2XWriters.class.getClassLoader());
+		}
+		catch (ServiceConfigurationError ex)
+		{
+			// the types of the remaining writers are serialized by reflection
+		}
+	}
+
+	private M2XWriters()
+	{
+	}
+
+	/**
+	 * Registers a writer, replacing the writer registered for its type before.
+	 *
+	 * @param writer the writer
+	 */
+	public static void register(M2XWriter<?> writer)
+	{
+		writers.put(writer.type(), writer);
+	}
+
+	/**
+	 * Registers the writers listed in META-INF/services/com.att.m2x.java.M2XWriter of a class
+	 * loader, e.g. the generated writers of a web application.
+	 *
+	 * @param loader the class loader
+	 * @throws ServiceConfigurationError if a listed writer cannot be loaded
+	 */
+	public static void registerAll(ClassLoader loader)
+	{
+		for (M2XWriter<?> writer : ServiceLoader.load(M2XWriter.class, loader))
+			register(writer);
+	}
+
+	/**
+	 * Unregisters the writer of a type, so neither the type nor its class loader are kept.
+	 *
+	 * @param type the type
+	 */
+	public static void unregister(Class<?> type)
+	{
+		writers.remove(type);
+	}
+
+	/**
+	 * Returns the writer of a type.
+	 *
+	 * @param type the type
+	 * @return the writer, null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> M2XWriter<T> writer(Class<T> type)
+	{
+		return (M2XWriter<T>)writers.get(type);
+	}
+
+	/**
+	 * @param obj the object
+	 * @return the object as query string, null if its type has no writer
+	 */
+	static String toQuery(Object obj)
+	{
+		M2XWriter<Object> writer = writerOf(obj);
+		if (writer == null)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		writer.writeQuery(obj, sb);
+		return sb.toString();
+	}
+
+	/**
+	 * @param obj the object
+	 * @return the object as JSON string, null if its type has no writer
+	 */
+	static String toJson(Object obj)
+	{
+		M2XWriter<Object> writer = writerOf(obj);
+		if (writer == null)
+			return null;
+		JSONStringer json = new JSONStringer();
+		writer.writeJson(obj, json);
+		return json.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static M2XWriter<Object> writerOf(Object obj)
+	{
+		return (M2XWriter<Object>)writer(obj.getClass());
+	}
+
+	/**
+	 * Appends a query parameter, the value encoded as by {@link java.net.URLEncoder} with UTF-8.
+	 *
+	 * @param sb the query being built
+	 * @param name the parameter name
+	 * @param value the parameter value (optional)
+	 */
+	public static void appendParameter(StringBuilder sb, String name, String value)
+	{
+		if (sb.length() > 0)
+			sb.append('&');
+		sb.append(name).append('=');
+		if (value != null)
+			appendEncoded(sb, value);
+	}
+
+	/**
+	 * Appends a query parameter, the value being the string representation of the object, empty
+	 * for null.
+	 *
+	 * @param sb the query being built
+	 * @param name the parameter name
+	 * @param value the parameter value (optional)
+	 */
+	public static void appendParameter(StringBuilder sb, String name, Object value)
+	{
+		appendParameter(sb, name, value == null ? null : value.toString());
+	}
+
+	/**
+	 * Appends a string encoded as by {@link java.net.URLEncoder} with UTF-8.
+	 *
+	 * @param sb the string being built
+	 * @param str the string to encode
+	 */
+	public static void appendEncoded(StringBuilder sb, String str)
+	{
+		int length = str.length();
+		int start = 0;
+		while (start < length)
+		{
+			int end = start;
+			while (end < length && isUnreserved(str.charAt(end)))
+				end++;
+			sb.append(str, start, end);
+			if (end == length)
+				return;
+
+			start = end;
+			while (end < length && !isUnreserved(str.charAt(end)))
+				end++;
+			for (byte b : str.substring(start, end).getBytes(UTF8))
+			{
+				if (b == ' ')
+					sb.append('+');
+				else
+					sb.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+			}
+			start = end;
+		}
+	}
+
+	private static boolean isUnreserved(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+			|| c == '.' || c == '-' || c == '*' || c == '_';
+	}
+
+	/**
+	 * Writes a JSON member, as {@link JSONObject#JSONObject(Object)} would: null values are
+	 * skipped, objects with a writer are written by it and other objects are wrapped by
+	 * {@link JSONObject#wrap(Object)}.
+	 *
+	 * @param writer the JSON being built
+	 * @param key the member name
+	 * @param value the member value (optional)
+	 */
+	@SuppressWarnings("unchecked")
+	public static void writeMember(JSONWriter writer, String key, Object value)
+	{
+		if (value == null)
+			return;
+		writer.key(key);
+		if (value instanceof String || value instanceof Number || value instanceof Boolean)
+		{
+			writer.value(value);
+			return;
+		}
+		M2XWriter<Object> valueWriter = (M2XWriter<Object>)writer(value.getClass());
+		if (valueWriter != null)
+			valueWriter.writeJson(value, writer);
+		else
+			writer.value(JSONObject.wrap(value));
+	}
+}
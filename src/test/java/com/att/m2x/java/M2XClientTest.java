@@ -1,9 +1,11 @@
 package com.att.m2x.java;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -13,6 +15,7 @@ import org.junit.Test;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static com.att.m2x.java.M2XClient.API_VERSION;
 
 public class M2XClientTest extends M2XTestBase
@@ -23,6 +26,34 @@ public class M2XClientTest extends M2XTestBase
 	private M2XKey key = null;
 	private M2XCollection collection = null;
 
+	// met once the request succeeds, e.g. once a created resource can be read
+	private abstract static class Succeeds implements M2XJobWatcher.Condition
+	{
+		public boolean isMet(M2XResponse response) { return response.status == 200; }
+	}
+
+	// met once the command with the given name is listed
+	private static final class Commands implements M2XJobWatcher.Condition
+	{
+		private final String name;
+
+		Commands(String name)
+		{
+			this.name = name;
+		}
+
+		public M2XResponse poll(M2XClient client) throws IOException
+		{
+			return client.commands(M2XClient.mapToQuery(Collections.singletonMap("name", this.name)));
+		}
+
+		public boolean isMet(M2XResponse response)
+		{
+			JSONArray commands = response.status == 200 ? response.json().optJSONArray("commands") : null;
+			return commands != null && commands.length() == 1;
+		}
+	}
+
 	public class StreamValues
 	{
 		public StreamValue[] values;
@@ -138,6 +169,31 @@ public class M2XClientTest extends M2XTestBase
 
 		url = client.buildUrl("/path", "foo=some bar with spaces&baz=bar");
 		assertThat(url, is(client.endpoint + API_VERSION + "/path?foo=some%20bar%20with%20spaces&baz=bar"));
+
+		url = client.buildUrl("/path", "foo=encoded%20bar&baz=100%");
+		assertThat(url, is(client.endpoint + API_VERSION + "/path?foo=encoded%20bar&baz=100%25"));
+
+		// escapes are kept, so an encoded query is not encoded twice
+		url = client.buildUrl("/path", "baz=100%25");
+		assertThat(url, is(client.endpoint + API_VERSION + "/path?baz=100%25"));
+	}
+
+	@Test
+	public void handleCacheTest()
+	{
+		M2XDevice device = client.device("0123456789abcdef0123456789abcdef");
+		assertThat(client.device("0123456789abcdef0123456789abcdef"), is(sameInstance(device)));
+		assertThat(device.stream("temperature"), is(sameInstance(device.stream("temperature"))));
+		assertThat(client.deviceBySerial("0123456789abcdef0123456789abcdef"), is(not(sameInstance(device))));
+
+		M2XHandleCache<Integer, String> cache = new M2XHandleCache<Integer, String>(10);
+		for (int i = 0; i < 100; i++)
+		{
+			cache.putIfAbsent(i, "handle" + i);
+			assertThat(cache.get(0), is("handle0"));
+		}
+		assertThat(cache.size(), is(lessThanOrEqualTo(22)));
+		assertThat(cache.get(1), is(nullValue()));
 	}
 
 	@Test
@@ -150,7 +206,50 @@ public class M2XClientTest extends M2XTestBase
 			put("val1", "1 1");
 			put("val2", "qwerty");
 		}});
-		assertThat(query, is("val1=1 1&val2=qwerty"));
+		assertThat(query, is("val1=1+1&val2=qwerty"));
+
+		query = new M2XQuery().limit(10).start(new Date(1420070400000L)).type("a b").toString();
+		assertThat(query, is("start=2015-01-01T00:00:00.000Z&limit=10&type=a+b"));
+
+		query = new M2XQuery().min(1.5).max(10).streams("temperature", "humidity").param("dir", "asc").toString();
+		assertThat(query, is("min=1.5&max=10&streams=temperature%2Chumidity&dir=asc"));
+
+		query = new M2XQuery().min(0.00001).max(1e21).toString();
+		assertThat(query, is("min=0.00001&max=1000000000000000000000"));
+
+		try
+		{
+			new M2XQuery().min(Double.NaN);
+			fail("NaN bound accepted");
+		}
+		catch (IllegalArgumentException ex)
+		{
+		}
+	}
+
+	@Test
+	public void dateTimeTest()
+	{
+		Date date = new Date(1420115400123L);
+		assertThat(M2XClient.dateTimeToString(date), is("2015-01-01T12:30:00.123Z"));
+		assertThat(M2XClient.stringToDateTime("2015-01-01T12:30:00.123Z"), is(date));
+		assertThat(M2XClient.stringToDateTime("2015-01-01T13:30:00.123456+01:00"), is(date));
+		assertThat(M2XClient.stringToDateTime("2015-01-01T07:00:00.123-0530"), is(date));
+		assertThat(M2XTimestamps.parse("2016-02-29T00:00:00Z"), is(1456704000000L));
+		assertThat(M2XTimestamps.format(-1), is("1969-12-31T23:59:59.999Z"));
+
+		for (String invalid : new String[] { "", "2015-01-01", "2015-02-29T00:00:00Z", "2015-01-01T24:00:00Z",
+			"2015-01-01T00:00:00.Z", "2015-01-01T00:00:00+1", "2015-01-01T00:00:00Zx" })
+		{
+			try
+			{
+				M2XTimestamps.parse(invalid);
+				throw new AssertionError(invalid);
+			}
+			catch (IllegalArgumentException ex)
+			{
+			}
+		}
 	}
 
 	@Test
@@ -177,7 +276,7 @@ public class M2XClientTest extends M2XTestBase
 		assertThat(response.status, is(200));
 		assertThat(response.success(), is(true));
 		assertThat(response.error(), is(false));
-		assertThat(response.raw, is(notNullValue()));
+		assertThat(response.raw(), is(notNullValue()));
 		assertThat(response.json(), is(notNullValue()));
 
 		response = client.deviceCatalog(M2XClient.mapToQuery(new HashMap<String, String>()
@@ -276,9 +375,14 @@ public class M2XClientTest extends M2XTestBase
 		}}));
 		assertThat(response.status, is(202));
 
-		Thread.sleep(1000);
-
-		response = device.location();
+		response = await(new M2XJobWatcher.Condition()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return device.location(); }
+			public boolean isMet(M2XResponse response)
+			{
+				return response.status == 200 && "Second Test Location".equals(response.json().optString("name"));
+			}
+		});
 
 		assertThat(response.status, is(200));
 		assertThat(response.json().getString("name"), is("Second Test Location"));
@@ -289,6 +393,9 @@ public class M2XClientTest extends M2XTestBase
 
 		assertThat(array.length(), is(2));
 
+		response = device.locationHistory(new M2XQuery().limit(1));
+		assertThat(response.json().getJSONArray("waypoints").length(), is(1));
+
 		// stream
 
 		stream = device.stream("testdevicestream");
@@ -305,9 +412,11 @@ public class M2XClientTest extends M2XTestBase
 		}}));
 		assertThat(response.status, is(202));
 
-		Thread.sleep(1500);
-
-		response = stream.details();
+		response = await(new M2XJobWatcher.Condition()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return stream.details(); }
+			public boolean isMet(M2XResponse response) { return response.status == 200 && response.json().optInt("value") == 10; }
+		});
 		assertThat(response.status, is(200));
 		assertThat(response.json().getString("name"), is(stream.streamName));
 		assertThat(response.json().getInt("value"), is(10));
@@ -316,23 +425,39 @@ public class M2XClientTest extends M2XTestBase
 		assertThat(response.status, is(200));
 		assertThat(response.json().getJSONArray("values").length(), is(1));
 
+		response = stream.values(new M2XQuery().start(now));
+		assertThat(response.status, is(200));
+		assertThat(response.json().getJSONArray("values").length(), is(1));
+
 		response = stream.updateValue(M2XClient.jsonSerialize(new HashMap<String, Object>()
 		{{
 			put("value", 20);
 		}}));
 		assertThat(response.status, is(202));
 
-		Thread.sleep(2000);
-
-		response = stream.sampling("type=sum&interval=200", null);
+		response = await(new M2XJobWatcher.Condition()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return stream.sampling("type=sum&interval=200", null); }
+			public boolean isMet(M2XResponse response)
+			{
+				JSONArray values = response.status == 200 ? response.json().optJSONArray("values") : null;
+				return values != null && values.length() == 1 && values.getJSONObject(0).optInt("value") == 30;
+			}
+		});
 		assertThat(response.status, is(200));
 		assertThat(response.json().getJSONArray("values").length(), is(1));
 		assertThat(response.json().getJSONArray("values").getJSONObject(0).getInt("value"), is(30));
 
-		response = stream.stats(null);
+		response = stream.sampling(new M2XQuery().type("sum").interval(200));
+		assertThat(response.json().getJSONArray("values").getJSONObject(0).getInt("value"), is(30));
+
+		response = stream.stats((String)null);
 		assertThat(response.status, is(200));
 		assertThat(response.json().getJSONObject("stats").getInt("avg"), is(15));
 
+		response = stream.stats(new M2XQuery().start(now.getTime() - 60000));
+		assertThat(response.json().getJSONObject("stats").getInt("avg"), is(15));
+
 		final Date from = new Date(now.getTime() - 120000);
 		final Date end = new Date(now.getTime() - 60000);
 		StreamValues values = new StreamValues();
@@ -364,7 +489,20 @@ public class M2XClientTest extends M2XTestBase
 			M2XClient.dateTimeToString(end) + "\",\"value\":4}]}}");
 		assertThat(response.status, is(202));
 
-		Thread.sleep(1000);
+		await(new M2XJobWatcher.Condition()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException
+			{
+				return device.searchValues("{\"start\":\"" + M2XClient.dateTimeToString(from) +
+					"\",\"end\":\"" + M2XClient.dateTimeToString(end) +
+					"\",\"streams\":[\"testdevicestream\"],\"conditions\":{\"testdevicestream\":{\"gte\":4}}}", null);
+			}
+			public boolean isMet(M2XResponse response)
+			{
+				JSONArray values = response.status == 200 ? response.json().optJSONArray("values") : null;
+				return values != null && values.length() > 0;
+			}
+		});
 
 		response = device.values(null, null);
 		assertThat(response.status, is(200));
@@ -376,7 +514,10 @@ public class M2XClientTest extends M2XTestBase
 		assertThat(response.status, is(200));
 		assertThat(response.json().getJSONArray("values").length(), greaterThan(0));
 
-		response = device.log(null);
+		response = device.log((String)null);
+		assertThat(response.status, is(200));
+
+		response = device.log(new M2XQuery().limit(1));
 		assertThat(response.status, is(200));
 		assertThat(response.json().getJSONArray("requests").length(), greaterThan(0));
 
@@ -429,9 +570,10 @@ public class M2XClientTest extends M2XTestBase
 		assertThat(response.status, is(200));
 		assertThat(response.json().getJSONArray("streams").length(), greaterThan(0));
 
-		Thread.sleep(1500);
-
-		response = stream.details();
+		response = await(new Succeeds()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return stream.details(); }
+		});
 		assertThat(response.status, is(200));
 		assertThat(response.json().getString("name"), is(stream.streamName));
 
@@ -456,7 +598,10 @@ public class M2XClientTest extends M2XTestBase
 		assertThat(response.status, is(200));
 		assertThat(response.json().getJSONArray("devices").length(), is(1));
 
-		Thread.sleep(1500);
+		await(new Succeeds()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return device.details(); }
+		});
 
 		response = device.delete();
 		assertThat(response.status, is(204));
@@ -493,9 +638,10 @@ public class M2XClientTest extends M2XTestBase
 		assertThat(keystr.length(), greaterThan(0));
 		key = client.key(keystr);
 
-		Thread.sleep(1500);
-
-		response = key.details();
+		response = await(new Succeeds()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return key.details(); }
+		});
 		assertThat(response.status, is(200));
 		assertThat(response.json().getBoolean("master"), is(true));
 
@@ -513,7 +659,10 @@ public class M2XClientTest extends M2XTestBase
 		assertThat(keystr.length(), greaterThan(0));
 		key = client.key(keystr);
 
-		Thread.sleep(1500);
+		await(new Succeeds()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return key.details(); }
+		});
 
 		response = key.delete();
 		assertThat(response.status, is(204));
@@ -595,7 +744,7 @@ public class M2XClientTest extends M2XTestBase
 	}
 
 	@Test
-	public void jobsApiTest() throws IOException, InterruptedException
+	public void jobsApiTest() throws Exception
 	{
 		M2XResponse response;
 
@@ -615,6 +764,18 @@ public class M2XClientTest extends M2XTestBase
 			json = response.json();
 			assertThat(json, is(notNullValue()));
 			assertThat(json.getString("id"), is(jobId));
+
+			M2XJobWatcher watcher = new M2XJobWatcher(client);
+			try
+			{
+				response = watcher.watch(jobId).get(60, TimeUnit.SECONDS);
+				assertThat(response.status, is(200));
+				assertThat(M2XJobWatcher.isFinished(response.json().getString("state")), is(true));
+			}
+			finally
+			{
+				watcher.shutdown();
+			}
 		}
 	}
 
@@ -633,15 +794,15 @@ public class M2XClientTest extends M2XTestBase
 
 		response = client.time("seconds");
 		assertThat(response.status, is(200));
-		assertThat(response.raw, is(notNullValue()));
+		assertThat(response.raw(), is(notNullValue()));
 
 		response = client.time("millis");
 		assertThat(response.status, is(200));
-		assertThat(response.raw, is(notNullValue()));
+		assertThat(response.raw(), is(notNullValue()));
 
 		response = client.time("iso8601");
 		assertThat(response.status, is(200));
-		assertThat(response.raw, is(notNullValue()));
+		assertThat(response.raw(), is(notNullValue()));
 	}
 
 	@Test
@@ -658,9 +819,11 @@ public class M2XClientTest extends M2XTestBase
 		String deviceId = response.json().getString("id");
 		assertThat(deviceId, is(notNullValue()));
 		device = client.device(deviceId);
-		Thread.sleep(1000);
 
-		response = device.details();
+		response = await(new Succeeds()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return device.details(); }
+		});
 		assertThat(response.status, is(200));
 		String deviceKey = response.json().getString("key");
 		assertThat(deviceKey, is(notNullValue()));
@@ -673,19 +836,16 @@ public class M2XClientTest extends M2XTestBase
 		response = client.sendCommand("{\"name\":\"" + commandName2 +
 			"\",\"targets\":{\"devices\":[\"" + deviceId + "\"]}}");
 		assertThat(response.status, is(202));
-		Thread.sleep(1000);
 
-		response = client.commands(M2XClient.mapToQuery(new HashMap<String, String>()
-		{{
-			put("name", commandName1);
-		}}));
+		await(new Commands(commandName2));
+		response = await(new Commands(commandName1));
 		assertThat(response.status, is(200));
 		JSONObject json = response.json();
 		assertThat(json, is(notNullValue()));
 		JSONArray commands = json.getJSONArray("commands");
 		assertThat(commands, is(notNullValue()));
 		assertThat(commands.length(), is(1));
-		String commandId1 = commands.getJSONObject(0).getString("id");
+		final String commandId1 = commands.getJSONObject(0).getString("id");
 		assertThat(commandId1, is(notNullValue()));
 
 		response = client.commandDetails(commandId1);
@@ -695,7 +855,7 @@ public class M2XClientTest extends M2XTestBase
 		assertThat(json.getString("name"), comparesEqualTo(commandName1));
 
 		M2XClient deviceClient = new M2XClient(deviceKey);
-		M2XDevice device_ = deviceClient.device(deviceId);
+		final M2XDevice device_ = deviceClient.device(deviceId);
 
 		response = device_.commands(null);
 		assertThat(response.status, is(200));
@@ -704,7 +864,7 @@ public class M2XClientTest extends M2XTestBase
 		assertThat(commands, is(notNullValue()));
 		assertThat(commands.length(), is(2));
 		assertThat(commands.getJSONObject(1).getString("id"), comparesEqualTo(commandId1));
-		String commandId2 = commands.getJSONObject(0).getString("id");
+		final String commandId2 = commands.getJSONObject(0).getString("id");
 		assertThat(commandId2, is(notNullValue()));
 
 		response = device_.commandDetails(commandId2);
@@ -715,8 +875,11 @@ public class M2XClientTest extends M2XTestBase
 
 		response = device_.processCommand(commandId1, null);
 		assertThat(response.status, is(204));
-		Thread.sleep(1000);
-		response = device_.commandDetails(commandId1);
+		response = await(new M2XJobWatcher.Condition()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return device_.commandDetails(commandId1); }
+			public boolean isMet(M2XResponse response) { return response.status == 200 && "processed".equals(response.json().optString("status")); }
+		});
 		assertThat(response.status, is(200));
 		json = response.json();
 		assertThat(json, is(notNullValue()));
@@ -724,8 +887,11 @@ public class M2XClientTest extends M2XTestBase
 
 		response = device_.rejectCommand(commandId2, null);
 		assertThat(response.status, is(204));
-		Thread.sleep(1000);
-		response = device_.commandDetails(commandId2);
+		response = await(new M2XJobWatcher.Condition()
+		{
+			public M2XResponse poll(M2XClient client) throws IOException { return device_.commandDetails(commandId2); }
+			public boolean isMet(M2XResponse response) { return response.status == 200 && "rejected".equals(response.json().optString("status")); }
+		});
 		assertThat(response.status, is(200));
 		json = response.json();
 		assertThat(json, is(notNullValue()));
@@ -0,0 +1,617 @@
+package com.att.m2x.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * In-process stand-in for the M2X v2 API, covering the devices, streams, values, updates,
+ * commands, jobs, metadata and time endpoints used by the client.
+ *
+ * Latency and server errors can be injected to exercise the client under load and failures.
+ * Compressed request bodies are accepted, and larger responses compressed if the client accepts it.
+ *
+ * <pre>
+ *	M2XStubServer stub = new M2XStubServer().start();
+ *	M2XClient client = new M2XClient("key", stub.endpoint());
+ * </pre>
+ */
+public final class M2XStubServer
+{
+	// response bodies from this size are gzip compressed for clients accepting it
+	private static final int COMPRESSION_THRESHOLD = 256;
+
+	/**
+	 * The fixed delay added to every response in milliseconds
+	 */
+	public volatile long latency = 0;
+	/**
+	 * The maximum random delay added on top of latency in milliseconds
+	 */
+	public volatile long latencyJitter = 0;
+	/**
+	 * The fraction (0 to 1) of requests answered with errorStatus
+	 */
+	public volatile double errorRate = 0;
+	/**
+	 * The status of injected errors
+	 */
+	public volatile int errorStatus = 500;
+	/**
+	 * The maximum number of devices a command may target, larger ones are answered with 413 (0 for no limit)
+	 */
+	public volatile int maxCommandTargets = 0;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random = new Random();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicInteger ids = new AtomicInteger();
+	private final AtomicInteger failNext = new AtomicInteger();
+	private volatile int failNextStatus = 500;
+	private final AtomicLong compressedRequests = new AtomicLong();
+
+	private final Map<String, JSONObject> devices = new LinkedHashMap<String, JSONObject>();
+	private final Map<String, JSONObject> streams = new LinkedHashMap<String, JSONObject>();
+	private final Map<String, JSONArray> values = new LinkedHashMap<String, JSONArray>();
+	private final Map<String, JSONObject> metadata = new LinkedHashMap<String, JSONObject>();
+	private final Map<String, JSONObject> commands = new LinkedHashMap<String, JSONObject>();
+	private final Map<String, JSONObject> jobs = new LinkedHashMap<String, JSONObject>();
+
+	public M2XStubServer() throws IOException
+	{
+		this(16);
+	}
+
+	public M2XStubServer(int threads) throws IOException
+	{
+		// without TCP_NODELAY small responses stall on delayed ACKs (~40ms each)
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				serve(exchange);
+			}
+		});
+	}
+
+	public M2XStubServer start()
+	{
+		this.server.start();
+		return this;
+	}
+
+	public void stop()
+	{
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the endpoint to pass to {@link M2XClient#M2XClient(String, String)}.
+	 *
+	 * @return the endpoint URL
+	 */
+	public String endpoint()
+	{
+		return "http://127.0.0.1:" + this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns the number of requests received.
+	 *
+	 * @return the number of requests
+	 */
+	public long requests()
+	{
+		return this.requests.get();
+	}
+
+	/**
+	 * Returns the number of requests received with a gzip compressed body.
+	 *
+	 * @return the number of compressed requests
+	 */
+	public long compressedRequests()
+	{
+		return this.compressedRequests.get();
+	}
+
+	/**
+	 * Answers the next requests with the given status.
+	 *
+	 * @param count the number of requests to fail
+	 * @param status the status to respond with
+	 */
+	public void failNext(int count, int status)
+	{
+		this.failNextStatus = status;
+		this.failNext.set(count);
+	}
+
+	/**
+	 * Creates a job which is reported complete after the given number of polls.
+	 *
+	 * @param polls the number of polls reporting the job as running
+	 * @return the id of the job
+	 */
+	public synchronized String createJob(int polls)
+	{
+		String id = nextId();
+		JSONObject job = new JSONObject();
+		job.put("id", id);
+		job.put("state", polls > 0 ? "running" : "complete");
+		job.put("polls", polls);
+		this.jobs.put(id, job);
+		return id;
+	}
+
+	/**
+	 * Creates devices without requests, e.g. to list several pages of them.
+	 *
+	 * @param count the number of devices
+	 * @return the ids of the devices
+	 */
+	public synchronized List<String> createDevices(int count)
+	{
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < count; i++)
+			ids.add(new JSONObject((String)createDevice(null)[1]).getString("id"));
+		return ids;
+	}
+
+	private String nextId()
+	{
+		return String.format("%032x", this.ids.incrementAndGet());
+	}
+
+	private void serve(HttpExchange exchange) throws IOException
+	{
+		this.requests.incrementAndGet();
+		try
+		{
+			String body = read(exchange);
+			delay();
+
+			int failing = this.failNext.get();
+			if (failing > 0 && this.failNext.compareAndSet(failing, failing - 1))
+			{
+				respond(exchange, this.failNextStatus, "{\"message\":\"Injected failure\"}");
+				return;
+			}
+			if (this.errorRate > 0 && this.random.nextDouble() < this.errorRate)
+			{
+				respond(exchange, this.errorStatus, "{\"message\":\"Injected failure\"}");
+				return;
+			}
+
+			String path = exchange.getRequestURI().getPath();
+			if (!path.startsWith(M2XClient.API_VERSION + "/"))
+			{
+				respond(exchange, 404, "{\"message\":\"Not found\"}");
+				return;
+			}
+			String[] segments = path.substring(M2XClient.API_VERSION.length() + 1).split("/");
+			String method = exchange.getRequestMethod();
+			String query = exchange.getRequestURI().getRawQuery();
+			Object[] result;
+			synchronized (this)
+			{
+				result = route(method, segments, query, body.length() == 0 ? null : body);
+			}
+			respond(exchange, (Integer)result[0], (String)result[1]);
+		}
+		catch (RuntimeException ex)
+		{
+			respond(exchange, 500, "{\"message\":\"" + ex + "\"}");
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	private Object[] route(String method, String[] segments, String query, String body)
+	{
+		String resource = segments[0];
+		if (resource.equals("time"))
+			return time(segments);
+		if (resource.equals("devices"))
+			return devices(method, segments, query, body);
+		if (resource.equals("distributions") && segments.length == 3 && segments[2].equals("devices"))
+			return method.equals("POST") ? createDevice(body) : list("devices", new ArrayList<JSONObject>(this.devices.values()), query);
+		if (resource.equals("commands"))
+			return commands(method, segments, body);
+		if (resource.equals("jobs"))
+			return jobs(segments, query);
+		return notFound();
+	}
+
+	private Object[] time(String[] segments)
+	{
+		long now = System.currentTimeMillis();
+		String iso = M2XClient.dateTimeToString(new java.util.Date(now));
+		if (segments.length == 1)
+			return ok(200, "{\"seconds\":" + now / 1000 + ",\"millis\":" + now + ",\"iso8601\":\"" + iso + "\"}");
+		if (segments[1].equals("seconds"))
+			return ok(200, String.valueOf(now / 1000));
+		if (segments[1].equals("millis"))
+			return ok(200, String.valueOf(now));
+		if (segments[1].equals("iso8601"))
+			return ok(200, iso);
+		return notFound();
+	}
+
+	private Object[] devices(String method, String[] segments, String query, String body)
+	{
+		if (segments.length == 1)
+			return method.equals("POST") ? createDevice(body) : list("devices", new ArrayList<JSONObject>(this.devices.values()), query);
+		if (segments.length == 2 && segments[1].equals("search"))
+			return list("devices", new ArrayList<JSONObject>(this.devices.values()), query);
+
+		JSONObject device = this.devices.get(segments[1]);
+		if (device == null)
+			return notFound();
+		String id = device.getString("id");
+		if (segments.length == 2)
+		{
+			if (method.equals("DELETE"))
+			{
+				this.devices.remove(id);
+				return ok(204, null);
+			}
+			if (method.equals("PUT"))
+			{
+				JSONObject update = new JSONObject(body);
+				for (String key : JSONObject.getNames(update))
+					device.put(key, update.get(key));
+				return ok(204, null);
+			}
+			return ok(200, device.toString());
+		}
+
+		String sub = segments[2];
+		if (sub.equals("metadata"))
+			return metadata(method, id, segments, body);
+		if (sub.equals("streams"))
+			return streams(method, id, segments, query, body);
+		if (sub.equals("update") || sub.equals("updates"))
+			return postUpdates(id, new JSONObject(body), sub.equals("update"));
+		if (sub.equals("values"))
+			return ok(200, "{\"values\":[]}");
+		if (sub.equals("commands"))
+			return deviceCommands(method, id, segments, body);
+		if (sub.equals("location") || sub.equals("log"))
+			return ok(method.equals("PUT") ? 202 : 200, "{}");
+		return notFound();
+	}
+
+	private Object[] createDevice(String body)
+	{
+		JSONObject device = body == null ? new JSONObject() : new JSONObject(body);
+		String serial = device.optString("serial", null);
+		for (JSONObject existing : serial == null ? new ArrayList<JSONObject>() : this.devices.values())
+			if (serial.equals(existing.optString("serial", null)))
+				return ok(422, "{\"message\":\"Validation Failed\",\"errors\":{\"serial\":[\"taken\"]}}");
+		String id = nextId();
+		device.put("id", id);
+		device.put("status", "enabled");
+		device.put("key", nextId());
+		this.devices.put(id, device);
+		return ok(201, device.toString());
+	}
+
+	private Object[] metadata(String method, String deviceId, String[] segments, String body)
+	{
+		JSONObject fields = this.metadata.get(deviceId);
+		if (fields == null)
+			this.metadata.put(deviceId, fields = new JSONObject());
+		if (segments.length == 3)
+		{
+			if (!method.equals("PUT"))
+				return ok(200, fields.toString());
+			JSONObject update = new JSONObject(body);
+			for (String key : JSONObject.getNames(update))
+				fields.put(key, update.get(key));
+			return ok(204, null);
+		}
+		String field = segments[3];
+		if (method.equals("PUT"))
+		{
+			fields.put(field, new JSONObject(body).get("value"));
+			return ok(204, null);
+		}
+		return fields.has(field) ? ok(200, new JSONObject().put("value", fields.get(field)).toString()) : notFound();
+	}
+
+	private Object[] streams(String method, String deviceId, String[] segments, String query, String body)
+	{
+		if (segments.length == 3)
+		{
+			List<JSONObject> list = new ArrayList<JSONObject>();
+			for (Map.Entry<String, JSONObject> entry : this.streams.entrySet())
+				if (entry.getKey().startsWith(deviceId + "/"))
+					list.add(entry.getValue());
+			return list("streams", list, query);
+		}
+
+		String key = deviceId + "/" + segments[3];
+		JSONObject stream = this.streams.get(key);
+		if (segments.length == 4)
+		{
+			if (method.equals("PUT"))
+			{
+				boolean created = stream == null;
+				stream = body == null ? new JSONObject() : new JSONObject(body);
+				stream.put("name", segments[3]);
+				this.streams.put(key, stream);
+				this.values.put(key, new JSONArray());
+				return ok(created ? 201 : 204, null);
+			}
+			if (stream == null)
+				return notFound();
+			if (method.equals("DELETE"))
+			{
+				this.streams.remove(key);
+				this.values.remove(key);
+				return ok(204, null);
+			}
+			return ok(200, stream.toString());
+		}
+
+		if (stream == null)
+			return notFound();
+		JSONArray streamValues = this.values.get(key);
+		String sub = segments[4];
+		if (sub.equals("value") && method.equals("PUT"))
+		{
+			JSONObject value = new JSONObject(body);
+			if (!value.has("timestamp"))
+				value.put("timestamp", M2XClient.dateTimeToString(new java.util.Date()));
+			stream.put("value", value.get("value"));
+			streamValues.put(value);
+			return ok(202, "{\"status\":\"accepted\"}");
+		}
+		if (sub.startsWith("values"))
+		{
+			if (method.equals("POST"))
+			{
+				JSONArray posted = new JSONObject(body).getJSONArray("values");
+				for (int i = 0; i < posted.length(); i++)
+					streamValues.put(posted.get(i));
+				return ok(202, "{\"status\":\"accepted\"}");
+			}
+			if (method.equals("DELETE"))
+			{
+				this.values.put(key, new JSONArray());
+				return ok(204, null);
+			}
+			return ok(200, new JSONObject().put("values", streamValues).toString());
+		}
+		if (sub.equals("stats"))
+			return ok(200, "{\"stats\":{\"count\":" + streamValues.length() + "}}");
+		if (sub.startsWith("sampling"))
+			return ok(200, new JSONObject().put("values", streamValues).toString());
+		return notFound();
+	}
+
+	private Object[] postUpdates(String deviceId, JSONObject update, boolean single)
+	{
+		JSONObject streamValues = update.getJSONObject("values");
+		for (String name : JSONObject.getNames(streamValues))
+		{
+			JSONArray target = this.values.get(deviceId + "/" + name);
+			if (target == null)
+			{
+				this.streams.put(deviceId + "/" + name, new JSONObject().put("name", name));
+				this.values.put(deviceId + "/" + name, target = new JSONArray());
+			}
+			if (single)
+				target.put(new JSONObject().put("timestamp", update.opt("timestamp")).put("value", streamValues.get(name)));
+			else
+			{
+				JSONArray posted = streamValues.getJSONArray(name);
+				for (int i = 0; i < posted.length(); i++)
+					target.put(posted.get(i));
+			}
+		}
+		return ok(202, "{\"status\":\"accepted\"}");
+	}
+
+	private Object[] commands(String method, String[] segments, String body)
+	{
+		if (segments.length == 1 && method.equals("POST"))
+		{
+			JSONObject request = new JSONObject(body);
+			JSONArray targets = request.getJSONObject("targets").optJSONArray("devices");
+			if (this.maxCommandTargets > 0 && targets != null && targets.length() > this.maxCommandTargets)
+				return ok(413, "{\"message\":\"Too many targets\"}");
+			String id = nextId();
+			for (int i = 0; targets != null && i < targets.length(); i++)
+			{
+				JSONObject command = new JSONObject();
+				command.put("id", id);
+				command.put("name", request.getString("name"));
+				command.put("data", request.opt("data"));
+				command.put("status", "sent");
+				this.commands.put(targets.getString(i) + "/" + id, command);
+			}
+			return ok(202, new JSONObject().put("id", id).toString());
+		}
+		if (segments.length == 1)
+			return ok(200, new JSONObject().put("commands", new JSONArray()).toString());
+		return ok(200, new JSONObject().put("id", segments[1]).toString());
+	}
+
+	private Object[] deviceCommands(String method, String deviceId, String[] segments, String body)
+	{
+		if (segments.length == 3)
+		{
+			JSONArray list = new JSONArray();
+			List<JSONObject> received = new ArrayList<JSONObject>();
+			for (Map.Entry<String, JSONObject> entry : this.commands.entrySet())
+				if (entry.getKey().startsWith(deviceId + "/"))
+					received.add(entry.getValue());
+			// most recent first, like the API
+			for (int i = received.size() - 1; i >= 0; i--)
+				list.put(received.get(i));
+			return ok(200, new JSONObject().put("commands", list).toString());
+		}
+		JSONObject command = this.commands.get(deviceId + "/" + segments[3]);
+		if (command == null)
+			return notFound();
+		if (segments.length == 5 && method.equals("POST"))
+		{
+			if (!command.getString("status").equals("sent"))
+				return ok(422, "{\"message\":\"Command already acknowledged\"}");
+			command.put("status", segments[4].equals("process") ? "processed" : "rejected");
+			if (body != null)
+				command.put("response_data", new JSONObject(body));
+			return ok(204, null);
+		}
+		return ok(200, command.toString());
+	}
+
+	private Object[] jobs(String[] segments, String query)
+	{
+		if (segments.length == 1)
+		{
+			JSONArray list = new JSONArray();
+			for (JSONObject job : this.jobs.values())
+				list.put(new JSONObject().put("id", job.getString("id")).put("state", job.getString("state")));
+			return ok(200, new JSONObject().put("jobs", list).toString());
+		}
+		JSONObject job = this.jobs.get(segments[1]);
+		if (job == null)
+			return notFound();
+		int polls = job.getInt("polls");
+		if (polls > 0)
+		{
+			job.put("polls", polls - 1);
+			if (polls == 1)
+				job.put("state", "complete");
+			return ok(200, new JSONObject().put("id", job.getString("id")).put("state", "running").toString());
+		}
+		return ok(200, new JSONObject().put("id", job.getString("id")).put("state", job.getString("state"))
+			.put("result", new JSONObject()).toString());
+	}
+
+	private Object[] list(String name, List<JSONObject> items, String query)
+	{
+		int page = 1;
+		int limit = 100;
+		if (query != null)
+		{
+			for (String param : query.split("&"))
+			{
+				if (param.startsWith("page="))
+					page = Integer.parseInt(param.substring(5));
+				else if (param.startsWith("limit="))
+					limit = Integer.parseInt(param.substring(6));
+			}
+		}
+		JSONArray array = new JSONArray();
+		for (int i = (page - 1) * limit; i < Math.min(items.size(), page * limit); i++)
+			array.put(items.get(i));
+		JSONObject json = new JSONObject();
+		json.put(name, array);
+		json.put("total", items.size());
+		json.put("pages", Math.max(1, (items.size() + limit - 1) / limit));
+		json.put("limit", limit);
+		json.put("current_page", page);
+		return ok(200, json.toString());
+	}
+
+	private static Object[] ok(int status, String body)
+	{
+		return new Object[] { status, body };
+	}
+
+	private static Object[] notFound()
+	{
+		return ok(404, "{\"message\":\"Not found\"}");
+	}
+
+	private void delay()
+	{
+		long delay = this.latency;
+		long jitter = this.latencyJitter;
+		if (jitter > 0)
+			delay += (long)(this.random.nextDouble() * jitter);
+		if (delay <= 0)
+			return;
+		try
+		{
+			Thread.sleep(delay);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private String read(HttpExchange exchange) throws IOException
+	{
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+		{
+			this.compressedRequests.incrementAndGet();
+			in = new GZIPInputStream(in);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		in.close();
+		return out.toString("UTF-8");
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException
+	{
+		if (body == null)
+		{
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		byte[] bytes = body.getBytes("UTF-8");
+		String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accepted != null && accepted.contains("gzip") && bytes.length >= COMPRESSION_THRESHOLD)
+		{
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(bytes);
+			gzip.close();
+			bytes = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+}
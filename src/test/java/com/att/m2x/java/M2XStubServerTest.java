@@ -0,0 +1,1122 @@
+package com.att.m2x.java;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the client against {@link M2XStubServer}, no API key or network access required
+ */
+public class M2XStubServerTest
+{
+	private M2XStubServer stub;
+	private M2XClient client;
+
+	@Before
+	public void testInit() throws IOException
+	{
+		this.stub = new M2XStubServer().start();
+		this.client = new M2XClient("0123456789abcdef0123456789abcdef", this.stub.endpoint());
+	}
+
+	@After
+	public void testCleanup()
+	{
+		this.stub.stop();
+	}
+
+	private M2XDevice createDevice() throws IOException
+	{
+		M2XResponse response = client.createDevice(M2XClient.jsonSerialize(new HashMap<String, Object>()
+		{{
+			put("name", "StubDevice");
+			put("visibility", "private");
+		}}));
+		assertThat(response.status, is(201));
+		return client.device(response.json().getString("id"));
+	}
+
+	@Test
+	public void streamValuesTest() throws IOException
+	{
+		M2XDevice device = createDevice();
+		M2XStream stream = device.stream("temperature");
+		assertThat(stream.update("{\"type\":\"numeric\"}").status, is(201));
+		assertThat(stream.updateValue("{\"value\":10}").status, is(202));
+		assertThat(device.postUpdates("{\"values\":{\"temperature\":[{\"timestamp\":\"2015-01-01T00:00:00.000Z\",\"value\":5}]}}").status, is(202));
+
+		M2XResponse response = stream.values(null, null);
+		assertThat(response.status, is(200));
+		assertThat(response.json().getJSONArray("values").length(), is(2));
+		assertThat(client.lastResponse, is(sameInstance(response)));
+	}
+
+	@Test
+	public void errorInjectionTest() throws IOException
+	{
+		stub.failNext(1, 503);
+		assertThat(client.time(null).status, is(503));
+		assertThat(client.time(null).status, is(200));
+	}
+
+	@Test
+	public void compressionTest() throws IOException
+	{
+		M2XInMemoryMetrics metrics = new M2XInMemoryMetrics();
+		client.metrics = metrics;
+		client.compressionThreshold = 1024;
+		client.acceptCompressed = true;
+		M2XDevice device = createDevice();
+		M2XStream stream = device.stream("temperature");
+		stream.update("{\"type\":\"numeric\"}");
+		assertThat(stub.compressedRequests(), is(0L));
+
+		StringBuilder values = new StringBuilder("{\"values\":[");
+		for (int i = 0; i < 200; i++)
+			values.append(i == 0 ? "" : ",").append("{\"timestamp\":\"").append(M2XTimestamps.format(i * 1000L))
+				.append("\",\"value\":").append(i).append('}');
+		String content = values.append("]}").toString();
+		assertThat(stream.postValues(content).status, is(202));
+		assertThat(stub.compressedRequests(), is(1L));
+		M2XInMemoryMetrics.Endpoint posted = metrics.endpoint("/devices/:id/streams/:name/values");
+		assertThat(posted.bytesSent.get(), lessThan((long)content.length() / 4));
+
+		M2XResponse response = stream.values(null, null);
+		assertThat(response.header("Content-Encoding"), is("gzip"));
+		assertThat(response.json().getJSONArray("values").length(), is(200));
+		assertThat(posted.bytesReceived.get(), lessThan((long)response.raw().length() / 4));
+
+		client.acceptCompressed = false;
+		response = stream.values(null, null);
+		assertThat(response.header("Content-Encoding"), is(nullValue()));
+		assertThat(response.json().getJSONArray("values").length(), is(200));
+	}
+
+	@Test
+	public void streamingRequestTest() throws IOException
+	{
+		M2XDevice device = createDevice();
+		M2XStream stream = device.stream("temperature");
+		stream.update("{\"type\":\"numeric\"}");
+
+		final List<M2XRequest> seen = new ArrayList<M2XRequest>();
+		client.addInterceptor(new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				seen.add(chain.request());
+				return chain.proceed(chain.request().header("X-Request-Source", "test"));
+			}
+		});
+		M2XRequestBody body = new M2XRequestBody()
+		{
+			public void writeTo(OutputStream out) throws IOException
+			{
+				out.write("{\"values\":[".getBytes("UTF-8"));
+				for (int i = 0; i < 1000; i++)
+					out.write(((i == 0 ? "" : ",") + "{\"timestamp\":\"" + M2XTimestamps.format(i * 1000L) + "\",\"value\":" + i + "}").getBytes("UTF-8"));
+				out.write("]}".getBytes("UTF-8"));
+			}
+		};
+		String path = "/devices/" + device.deviceId + "/streams/temperature/values";
+		assertThat(client.makeStreamingRequest("POST", path, null, body).status, is(202));
+		assertThat(seen.get(0).body, is(sameInstance(body)));
+		assertThat(seen.get(0).jsonContent, is(nullValue()));
+
+		client.compressionThreshold = 0;
+		assertThat(client.makeStreamingRequest("POST", path, null, body).status, is(202));
+		assertThat(stub.compressedRequests(), is(1L));
+		assertThat(stream.values(null, null).json().getJSONArray("values").length(), is(2000));
+	}
+
+	@Test
+	public void valueIteratorTest() throws IOException
+	{
+		M2XDevice device = createDevice();
+		M2XStream temperature = device.stream("temperature");
+		temperature.update("{\"type\":\"numeric\"}");
+		M2XStream state = device.stream("state");
+		state.update("{\"type\":\"alphanumeric\"}");
+
+		Iterator<M2XValue> values = new Iterator<M2XValue>()
+		{
+			private int next = 0;
+
+			public boolean hasNext() { return this.next < 5000; }
+
+			public M2XValue next() { return new M2XValue(this.next * 1000L, this.next++ + 0.5); }
+
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+		assertThat(temperature.postValueIterator(values).status, is(202));
+		JSONArray posted = temperature.values(null, null).json().getJSONArray("values");
+		assertThat(posted.length(), is(5000));
+		assertThat(posted.getJSONObject(4999).getDouble("value"), is(4999.5));
+		assertThat(posted.getJSONObject(4999).getString("timestamp"), is("1970-01-01T01:23:19.000Z"));
+
+		Map<String, Iterator<M2XValue>> updates = new LinkedHashMap<String, Iterator<M2XValue>>();
+		updates.put("temperature", Collections.singletonList(new M2XValue(0, 21)).iterator());
+		updates.put("state", Arrays.asList(new M2XValue(0, "say \"on\"\n"), new M2XValue(1000, "off"),
+			new M2XValue(2000, "caf\u00e9 \ud83d\ude00")).iterator());
+		assertThat(device.postUpdateIterators(updates).status, is(202));
+		assertThat(temperature.values(null, null).json().getJSONArray("values").length(), is(5001));
+		posted = state.values(null, null).json().getJSONArray("values");
+		assertThat(posted.getJSONObject(0).getString("value"), is("say \"on\"\n"));
+		assertThat(posted.getJSONObject(2).getString("value"), is("caf\u00e9 \ud83d\ude00"));
+		assertThat(new M2XValue(0, "off").toString(), is("{\"timestamp\":\"1970-01-01T00:00:00.000Z\",\"value\":\"off\"}"));
+
+		try
+		{
+			new M2XValue(0, Double.NaN);
+			fail("NaN value accepted");
+		}
+		catch (JSONException ex)
+		{
+		}
+		try
+		{
+			new M2XValue(Long.MAX_VALUE, 1);
+			fail("Timestamp after the year 9999 accepted");
+		}
+		catch (IllegalArgumentException ex)
+		{
+		}
+
+		// a failing iterator aborts the request instead of ending the body early
+		Iterator<M2XValue> failing = new Iterator<M2XValue>()
+		{
+			private int next = 0;
+
+			public boolean hasNext() { return true; }
+
+			public M2XValue next()
+			{
+				if (this.next == 2000)
+					throw new IllegalStateException("Cursor closed");
+				return new M2XValue(this.next++ * 1000L, 1);
+			}
+
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+		try
+		{
+			temperature.postValueIterator(failing);
+			fail("Iterator failure not thrown");
+		}
+		catch (IllegalStateException ex)
+		{
+		}
+		assertThat(temperature.values(null, null).json().getJSONArray("values").length(), is(5001));
+	}
+
+	@Test
+	public void responseBytesTest() throws IOException
+	{
+		M2XDevice device = createDevice();
+		M2XResponse response = device.details();
+		assertThat(new String(response.bytes(), "UTF-8"), is(response.raw()));
+		assertThat(response.raw(), is(sameInstance(response.raw())));
+
+		client.decodeResponses = false;
+		response = device.details();
+		assertThat(response.json().getString("name"), is("StubDevice"));
+		assertThat(response.raw(), is(new String(response.bytes(), "UTF-8")));
+		assertThat(response.raw(), is(sameInstance(response.raw())));
+		assertThat(response.inputStream().read(), is((int)'{'));
+	}
+
+	@Test
+	public void responseSizeTest() throws IOException
+	{
+		M2XDevice device = createDevice();
+		M2XStream stream = device.stream("temperature");
+		stream.update("{\"type\":\"numeric\"}");
+		List<M2XValue> values = new ArrayList<M2XValue>();
+		for (int i = 0; i < 1000; i++)
+			values.add(new M2XValue(i * 1000L, i));
+		stream.postValueIterator(values.iterator());
+
+		client.responseMemoryLimit = 1024;
+		client.acceptCompressed = true;
+		M2XResponse response = stream.values(null, null);
+		assertThat(response.spilled(), is(true));
+		assertThat(response.json().getJSONArray("values").length(), is(1000));
+		assertThat(new String(response.bytes(), "UTF-8"), is(response.raw()));
+		assertThat(device.details().spilled(), is(false));
+		String raw = response.raw();
+		response.release();
+		assertThat(response.spilled(), is(false));
+		assertThat(response.raw(), is(sameInstance(raw)));
+		assertThat(new String(response.bytes(), "UTF-8"), is(raw));
+
+		client.acceptCompressed = false;
+		response = stream.values(null, null);
+		assertThat(response.spilled(), is(true));
+		assertThat(response.json().getJSONArray("values").length(), is(1000));
+
+		client.maxResponseSize = 4096;
+		try
+		{
+			stream.values(null, null);
+			fail("Response larger than the maximum read");
+		}
+		catch (M2XRejectedException ex)
+		{
+			assertThat(ex.endpoint, is("/devices/:id/streams/:name/values"));
+		}
+		client.acceptCompressed = true;
+		try
+		{
+			stream.values(null, null);
+			fail("Compressed response larger than the maximum read");
+		}
+		catch (M2XRejectedException ex)
+		{
+			assertThat(ex.getMessage(), containsString("4096"));
+		}
+		assertThat(device.details().status, is(200));
+	}
+
+	@Test
+	public void responseViewTest() throws Exception
+	{
+		M2XDevice device = createDevice();
+		createDevice();
+		M2XStream stream = device.stream("temperature");
+		stream.update("{\"type\":\"numeric\",\"unit\":{\"label\":\"celsius\",\"symbol\":\"C\"}}");
+		stream.postValueIterator(Arrays.asList(new M2XValue(0, 20.5), new M2XValue(1000, 21)).iterator());
+
+		M2XDeviceView details = device.details().device();
+		assertThat(details.id(), is(device.deviceId));
+		assertThat(details.name(), is("StubDevice"));
+		assertThat(details.visibility(), is("private"));
+		assertThat(details.serial(), is(nullValue()));
+		assertThat(details.tags().isEmpty(), is(true));
+
+		M2XStreamView streamDetails = stream.details().stream();
+		assertThat(streamDetails.name(), is("temperature"));
+		assertThat(streamDetails.unitSymbol(), is("C"));
+		assertThat(streamDetails.latestValueAt(), is(nullValue()));
+
+		M2XValuesView values = stream.values(null, null).values();
+		assertThat(values.size(), is(2));
+		assertThat(values.number(0), is(20.5));
+		assertThat(values.timestamp(1), is(1000L));
+		assertThat(values.value(1).value, is((Object)21));
+		int count = 0;
+		for (M2XValue value : values)
+			count += value.timestamp == count * 1000L ? 1 : 0;
+		assertThat(count, is(2));
+
+		M2XPageView page = client.devices(new M2XQuery().limit(1).toString()).page();
+		assertThat(page.total(), is(2));
+		assertThat(page.pages(), is(2));
+		assertThat(page.currentPage(), is(1));
+		assertThat(page.hasNext(), is(true));
+
+		// parsed once and shared by all readers
+		final M2XResponse response = device.details();
+		final List<JSONObject> parsed = Collections.synchronizedList(new ArrayList<JSONObject>());
+		Thread[] readers = new Thread[4];
+		for (int i = 0; i < readers.length; i++)
+		{
+			readers[i] = new Thread()
+			{
+				@Override
+				public void run() { parsed.add(response.device().json); }
+			};
+			readers[i].start();
+		}
+		for (Thread reader : readers)
+			reader.join();
+		for (JSONObject json : parsed)
+			assertThat(json, is(sameInstance(response.json())));
+
+		// callers only get copies of the viewed object
+		JSONObject copy = response.device().json();
+		assertThat(copy, is(not(sameInstance(response.json()))));
+		copy.put("name", "changed");
+		assertThat(response.device().name(), is(not("changed")));
+	}
+
+	@Test
+	public void interceptorTest() throws IOException
+	{
+		final List<String> seen = new ArrayList<String>();
+		M2XInterceptor recorder = new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				seen.add(chain.request().method + " " + chain.request().path);
+				return chain.proceed(chain.request().header("X-Test", "1"));
+			}
+		};
+		client.addInterceptor(recorder);
+		client.addInterceptor(new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				M2XRequest request = chain.request();
+				if (!request.path.equals("/time"))
+					return chain.proceed(request);
+				assertThat(request.headers.get("X-Test"), is("1"));
+				return new M2XResponse(request.method, new URL(chain.client().buildUrl(request.path, request.query)),
+					null, 200, null, "{\"cached\":true}");
+			}
+		});
+
+		long requests = stub.requests();
+		M2XResponse response = client.time(null);
+		assertThat(response.json().getBoolean("cached"), is(true));
+		assertThat(stub.requests(), is(requests));
+		assertThat(seen, contains("GET /time"));
+
+		client.removeInterceptor(recorder);
+		createDevice();
+		assertThat(seen.size(), is(1));
+		assertThat(stub.requests(), is(requests + 1));
+	}
+
+	@Test
+	public void metricsTest() throws IOException
+	{
+		M2XInMemoryMetrics metrics = new M2XInMemoryMetrics();
+		client.metrics = metrics;
+		M2XDevice device = createDevice();
+		device.stream("temperature").update("{\"type\":\"numeric\"}");
+		device.stream("temperature").values(null, null);
+		stub.failNext(1, 500);
+		device.stream("temperature").values(null, null);
+
+		M2XInMemoryMetrics.Endpoint values = metrics.endpoint("/devices/:id/streams/:name/values");
+		assertThat(values.total.count(), is(2L));
+		assertThat(values.responses(2), is(1L));
+		assertThat(values.responses(5), is(1L));
+		assertThat(values.inFlight.get(), is(0));
+		assertThat(values.bytesReceived.get(), greaterThan(0L));
+		assertThat(metrics.endpoint("/devices").bytesSent.get(), greaterThan(0L));
+
+		// reset while in flight, then failing with a runtime exception
+		final M2XInMemoryMetrics reset = metrics;
+		try
+		{
+			client.makeStreamingRequest("POST", "/devices", null, new M2XRequestBody()
+			{
+				public void writeTo(OutputStream out)
+				{
+					reset.reset();
+					throw new IllegalStateException("Broken body");
+				}
+			});
+			fail("Broken body sent");
+		}
+		catch (IllegalStateException ex)
+		{
+			M2XInMemoryMetrics.Endpoint devices = metrics.endpoint("/devices");
+			assertThat(devices.inFlight.get(), is(0));
+			assertThat(devices.failures.get(), is(1L));
+			assertThat(devices.bytesSent.get(), is(0L));
+		}
+	}
+
+	@Test
+	public void retryPolicyTest() throws IOException
+	{
+		M2XRetryPolicy retries = new M2XRetryPolicy();
+		retries.baseDelay = 1;
+		client.addInterceptor(retries);
+		M2XDevice device = createDevice();
+
+		long requests = stub.requests();
+		stub.failNext(2, 503);
+		assertThat(device.stream("temperature").values(null, null).status, is(404));
+		assertThat(stub.requests(), is(requests + 3));
+
+		stub.failNext(3, 500);
+		assertThat(client.time(null).status, is(500));
+		assertThat(stub.requests(), is(requests + 6));
+
+		stub.failNext(1, 503);
+		assertThat(client.createDevice("{\"name\":\"Other\"}").status, is(503));
+		assertThat(stub.requests(), is(requests + 7));
+
+		final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("retry-after", Collections.singletonList("3600"));
+		client.addInterceptor(new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				return new M2XResponse(chain.request().method, null, null, 429, headers, null);
+			}
+		});
+		M2XResponse response = client.time(null);
+		assertThat(response.status, is(429));
+		assertThat(response.header("Retry-After"), is("3600"));
+		assertThat(M2XRetryPolicy.retryAfter(response), is(3600000L));
+	}
+
+	@Test
+	public void retryPolicyExceptionTest() throws Exception
+	{
+		M2XRetryPolicy retries = new M2XRetryPolicy();
+		retries.baseDelay = 1;
+		client.addInterceptor(retries);
+		M2XDevice device = createDevice();
+		M2XStream stream = device.stream("temperature");
+		assertThat(stream.update("{\"type\":\"numeric\"}").status, is(201));
+
+		long requests = stub.requests();
+		stub.failNext(1, 503);
+		M2XValue value = new M2XValue(System.currentTimeMillis(), 1);
+		assertThat(stream.postValueIterator(Collections.singletonList(value).iterator()).status, is(503));
+		assertThat(stub.requests(), is(requests + 1));
+
+		stub.latency = 300;
+		client.readTimeout = 100;
+		try
+		{
+			client.time(null);
+			fail("Read did not time out");
+		}
+		catch (SocketTimeoutException ex)
+		{
+			assertThat(stub.requests(), is(requests + 4));
+		}
+		try
+		{
+			client.createDevice("{\"name\":\"Other\"}");
+			fail("Read did not time out");
+		}
+		catch (SocketTimeoutException ex)
+		{
+			assertThat(stub.requests(), is(requests + 5));
+		}
+
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		final AtomicInteger attempts = new AtomicInteger();
+		M2XClient closed = new M2XClient("0123456789abcdef0123456789abcdef", "http://127.0.0.1:" + port);
+		closed.addInterceptor(retries);
+		closed.addInterceptor(new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				attempts.incrementAndGet();
+				return chain.proceed(chain.request());
+			}
+		});
+		try
+		{
+			closed.createDevice("{\"name\":\"Other\"}");
+			fail("Connected to a closed port");
+		}
+		catch (ConnectException ex)
+		{
+			assertThat(attempts.get(), is(3));
+		}
+
+		assertThat(M2XRetryPolicy.isNotSent(new SocketTimeoutException("connect timed out")), is(true));
+		assertThat(M2XRetryPolicy.isNotSent(new SocketTimeoutException("Read timed out")), is(false));
+	}
+
+	@Test
+	public void circuitBreakerTest() throws Exception
+	{
+		final List<String> transitions = new ArrayList<String>();
+		M2XCircuitBreaker breaker = new M2XCircuitBreaker();
+		breaker.minimumCalls = 4;
+		breaker.openDuration = 50;
+		breaker.halfOpenProbes = 1;
+		breaker.listener = new M2XCircuitBreaker.Listener()
+		{
+			public synchronized void stateChanged(String endpoint, M2XCircuitBreaker.State from, M2XCircuitBreaker.State to)
+			{
+				transitions.add(endpoint + " " + to);
+			}
+		};
+		client.addInterceptor(breaker);
+
+		assertThat(client.time(null).status, is(200));
+		assertThat(client.time(null).status, is(200));
+		stub.failNext(2, 503);
+		assertThat(client.time(null).status, is(503));
+		assertThat(client.time(null).status, is(503));
+		assertThat(breaker.state("/time"), is(M2XCircuitBreaker.State.OPEN));
+		assertThat(breaker.state("/devices"), is(M2XCircuitBreaker.State.CLOSED));
+
+		long requests = stub.requests();
+		try
+		{
+			client.time(null);
+			fail("Request sent while circuit open");
+		}
+		catch (M2XRejectedException ex)
+		{
+			assertThat(ex.endpoint, is("/time"));
+		}
+		assertThat(stub.requests(), is(requests));
+
+		Thread.sleep(60);
+		assertThat(client.time(null).status, is(200));
+		assertThat(breaker.state("/time"), is(M2XCircuitBreaker.State.CLOSED));
+		assertThat(transitions, contains("/time OPEN", "/time HALF_OPEN", "/time CLOSED"));
+
+		// a failing listener does not fail the request opening the circuit
+		breaker.listener = new M2XCircuitBreaker.Listener()
+		{
+			public void stateChanged(String endpoint, M2XCircuitBreaker.State from, M2XCircuitBreaker.State to)
+			{
+				throw new IllegalStateException("listener failed");
+			}
+		};
+		stub.failNext(4, 503);
+		for (int i = 0; i < 4 && breaker.state("/time") == M2XCircuitBreaker.State.CLOSED; i++)
+			assertThat(client.time(null).status, is(503));
+		assertThat(breaker.state("/time"), is(M2XCircuitBreaker.State.OPEN));
+	}
+
+	@Test
+	public void circuitBreakerTimeoutTest() throws Exception
+	{
+		M2XCircuitBreaker breaker = new M2XCircuitBreaker();
+		breaker.minimumCalls = 2;
+		client.addInterceptor(breaker);
+
+		stub.latency = 300;
+		client.readTimeout = 100;
+		for (int i = 0; i < 2; i++)
+		{
+			try
+			{
+				client.time(null);
+				fail("Read did not time out");
+			}
+			catch (SocketTimeoutException ex)
+			{
+			}
+		}
+		assertThat(breaker.state("/time"), is(M2XCircuitBreaker.State.OPEN));
+	}
+
+	@Test
+	public void rateLimiterTest() throws IOException
+	{
+		M2XRateLimiter limiter = new M2XRateLimiter(1, 5);
+		limiter.maxWait = 0;
+		client.addInterceptor(limiter);
+
+		M2XRequest read = new M2XRequest("GET", "/devices/1/streams", null, null);
+		M2XRequest command = new M2XRequest("POST", "/devices/1/commands/2/process", null, null);
+		assertThat(M2XRateLimiter.priorityOf(read), is(M2XRateLimiter.Priority.LOW));
+		assertThat(M2XRateLimiter.priorityOf(command), is(M2XRateLimiter.Priority.HIGH));
+
+		// reads may not use the reserved fifth of the burst
+		for (int i = 0; i < 4; i++)
+			assertThat(client.time(null).status, is(200));
+		try
+		{
+			client.time(null);
+			fail("Read sent over budget");
+		}
+		catch (M2XRejectedException ex)
+		{
+			assertThat(ex.endpoint, is("/time"));
+		}
+		limiter.acquire("/devices/:id/commands/:id/process", M2XRateLimiter.Priority.HIGH);
+
+		limiter = new M2XRateLimiter(1000, 10);
+		limiter.maxWait = 0;
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("X-RateLimit-Remaining", Collections.singletonList("0"));
+		headers.put("X-RateLimit-Reset", Collections.singletonList(Long.toString(System.currentTimeMillis() / 1000 + 3600)));
+		limiter.update(new M2XResponse("GET", null, null, 200, headers, null));
+		try
+		{
+			limiter.acquire("/time", M2XRateLimiter.Priority.HIGH);
+			fail("Request sent with no remaining budget");
+		}
+		catch (M2XRejectedException ex)
+		{
+			assertThat(ex.getMessage(), containsString("Rate limit"));
+		}
+	}
+
+	@Test
+	public void concurrencyLimiterTest() throws IOException
+	{
+		M2XConcurrencyLimiter limiter = new M2XConcurrencyLimiter(10);
+		limiter.maxWait = 0;
+		client.addInterceptor(limiter);
+
+		stub.failNext(1, 503);
+		assertThat(client.time(null).status, is(503));
+		assertThat(limiter.limit("GET"), is(9));
+		assertThat(limiter.limit("POST"), is(10));
+		assertThat(limiter.inFlight("GET"), is(0));
+
+		limiter.maxLimit = 1;
+		stub.failNext(10, 503);
+		for (int i = 0; i < 10; i++)
+			client.time(null);
+		assertThat(limiter.limit("GET"), is(1));
+
+		// a request made while another one is in flight is over the limit
+		final List<IOException> errors = new ArrayList<IOException>();
+		client.addInterceptor(new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				if (errors.isEmpty())
+				{
+					try
+					{
+						chain.client().time(null);
+					}
+					catch (M2XRejectedException ex)
+					{
+						errors.add(ex);
+					}
+				}
+				return chain.proceed(chain.request());
+			}
+		});
+		assertThat(client.time(null).status, is(200));
+		assertThat(errors.size(), is(1));
+		assertThat(limiter.inFlight("GET"), is(0));
+	}
+
+	@Test
+	public void concurrencyLimiterBackoffTest() throws IOException
+	{
+		M2XConcurrencyLimiter limiter = new M2XConcurrencyLimiter(10);
+		client.addInterceptor(limiter);
+
+		// the outer call was sent before the nested one shrank the limit
+		M2XInterceptor nested = new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				if (chain.request().path.equals("/time"))
+					assertThat(chain.client().time("seconds").status, is(503));
+				return chain.proceed(chain.request());
+			}
+		};
+		client.addInterceptor(nested);
+		stub.failNext(2, 503);
+		assertThat(client.time(null).status, is(503));
+		assertThat(limiter.limit("GET"), is(9));
+		client.removeInterceptor(nested);
+
+		stub.latency = 300;
+		client.readTimeout = 100;
+		try
+		{
+			client.time(null);
+			fail("Read did not time out");
+		}
+		catch (SocketTimeoutException ex)
+		{
+			assertThat(limiter.limit("GET"), is(8));
+			assertThat(limiter.inFlight("GET"), is(0));
+		}
+	}
+
+	@Test
+	public void responseListenerTest() throws IOException
+	{
+		final List<M2XResponse> responses = new ArrayList<M2XResponse>();
+		client.trackLastResponse = false;
+		client.setResponseListener(new M2XResponseListener()
+		{
+			public void onResponse(M2XResponse response) { responses.add(response); }
+		});
+		M2XResponse response = client.time(null);
+		assertThat(client.lastResponse, is(nullValue()));
+		assertThat(responses, contains(response));
+
+		client.setResponseListener(null);
+		client.time(null);
+		assertThat(responses.size(), is(1));
+	}
+
+	@Test
+	public void jobWatcherTest() throws Exception
+	{
+		client.addInterceptor(new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				if (!chain.request().path.equals("/jobs/unexpected"))
+					return chain.proceed(chain.request());
+				return new M2XResponse(chain.request().method, null, null, 200, null, "[\"unexpected\"]");
+			}
+		});
+		M2XJobWatcher watcher = new M2XJobWatcher(client);
+		watcher.initialDelay = 10;
+		try
+		{
+			Future<M2XResponse> unexpected = watcher.watch("unexpected", 50);
+			M2XResponse response = watcher.watch(stub.createJob(3), 50).get(10, TimeUnit.SECONDS);
+			assertThat(response.json().getString("state"), is("complete"));
+			try
+			{
+				unexpected.get(10, TimeUnit.SECONDS);
+				fail("Job with unexpected details completed");
+			}
+			catch (ExecutionException ex)
+			{
+				assertThat(ex.getCause(), is(instanceOf(JSONException.class)));
+			}
+			// the scheduler is still running
+			assertThat(watcher.watch(stub.createJob(1), 50).get(10, TimeUnit.SECONDS).status, is(200));
+			assertThat(watcher.pending(), is(0));
+		}
+		finally
+		{
+			watcher.shutdown();
+		}
+	}
+
+	@Test
+	public void jobWatcherConditionTest() throws Exception
+	{
+		M2XJobWatcher watcher = new M2XJobWatcher(client);
+		watcher.initialDelay = 0;
+		final AtomicInteger polls = new AtomicInteger();
+		try
+		{
+			// without initial delay the polls still back off
+			Future<M2XResponse> never = watcher.await(new M2XJobWatcher.Condition()
+			{
+				public M2XResponse poll(M2XClient client) throws IOException
+				{
+					polls.incrementAndGet();
+					return client.time(null);
+				}
+				public boolean isMet(M2XResponse response) { return false; }
+			}, 0);
+			Thread.sleep(1000);
+			assertThat(polls.get(), is(both(greaterThan(1)).and(lessThan(7))));
+			never.cancel(false);
+
+			Future<M2XResponse> created = watcher.await(new M2XJobWatcher.Condition()
+			{
+				public M2XResponse poll(M2XClient client) throws IOException { return client.devices(null); }
+				public boolean isMet(M2XResponse response) { return response.json().getJSONArray("devices").length() > 0; }
+			}, 200);
+			assertThat(created.isDone(), is(false));
+			createDevice();
+			assertThat(created.get(10, TimeUnit.SECONDS).json().getJSONArray("devices").length(), is(1));
+		}
+		finally
+		{
+			watcher.shutdown();
+		}
+	}
+
+	@Test
+	public void bulkProvisionerTest() throws Exception
+	{
+		File checkpoint = File.createTempFile("m2x-checkpoint", ".txt");
+		checkpoint.delete();
+		checkpoint.deleteOnExit();
+		List<String> specs = new ArrayList<String>();
+		for (int i = 0; i < 6; i++)
+			specs.add("{\"name\":\"Sensor\",\"serial\":\"s" + i + "\",\"visibility\":\"private\"}");
+		specs.add("{\"name\":\"Sensor\",\"visibility\":\"private\"}");
+		specs.add("{\"name\":\"Sensor\",\"visibility\":\"public\"}");
+
+		// a malformed spec aborts the run after the devices in flight are checkpointed
+		M2XBulkProvisioner provisioner = new M2XBulkProvisioner(client, 4, checkpoint);
+		List<String> broken = new ArrayList<String>(specs);
+		broken.add(5, "{\"name\":");
+		try
+		{
+			provisioner.run(broken.iterator());
+			fail("Malformed spec provisioned");
+		}
+		catch (JSONException ex)
+		{
+			assertThat(provisioner.stats().provisioned, is(5L));
+		}
+		assertThat(client.devices(null).page().total(), is(5));
+
+		// a device created without checkpoint is recognized by its serial
+		List<String> lines = readLines(checkpoint);
+		assertThat(lines.size(), is(5));
+		FileWriter writer = new FileWriter(checkpoint);
+		for (String line : lines.subList(1, 5))
+			writer.write(line + "\n");
+		writer.close();
+		M2XBulkProvisioner.Stats stats = provisioner.run(specs.iterator());
+		assertThat(stats.skipped, is(5L));
+		assertThat(stats.provisioned, is(3L));
+		assertThat(stats.failed, is(0L));
+		assertThat(client.devices(null).page().total(), is(8));
+
+		stats = provisioner.run(specs.iterator());
+		assertThat(stats.skipped, is(8L));
+		assertThat(stats.provisioned, is(0L));
+		assertThat(stats.throughput(), is(0.0));
+
+		// a request without serial timing out after being sent is not repeated
+		stub.latency = 300;
+		client.readTimeout = 100;
+		long requests = stub.requests();
+		String late = "{\"name\":\"Late\",\"visibility\":\"private\"}";
+		stats = provisioner.run(Collections.singletonList(late).iterator());
+		assertThat(stats.failed, is(1L));
+		assertThat(stats.errors.get(0), is(1L));
+		assertThat(stub.requests(), is(requests + 1));
+		stub.latency = 0;
+		client.readTimeout = 30000;
+		// the stub creates the device once its delay is over
+		Thread.sleep(400);
+		assertThat(client.devices(null).page().total(), is(9));
+
+		// one with serial is, the device created by the lost request is rejected as duplicate
+		final AtomicInteger lost = new AtomicInteger(1);
+		client.addInterceptor(new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				M2XResponse response = chain.proceed(chain.request());
+				if (lost.getAndDecrement() > 0)
+					throw new SocketTimeoutException("Read timed out");
+				return response;
+			}
+		});
+		requests = stub.requests();
+		stats = provisioner.run(Collections.singletonList("{\"name\":\"Sensor\",\"serial\":\"late\"}").iterator());
+		assertThat(stats.skipped, is(1L));
+		assertThat(stats.retries, is(1L));
+		assertThat(stub.requests(), is(requests + 2));
+		assertThat(client.devices(null).page().total(), is(10));
+	}
+
+	private static List<String> readLines(File file) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try
+		{
+			List<String> lines = new ArrayList<String>();
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+			return lines;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	@Test
+	public void bulkMetadataTest() throws Exception
+	{
+		List<M2XDevice> devices = Arrays.asList(createDevice(), createDevice(), createDevice());
+		devices.get(0).updateMetadataField("owner", "{\"value\":\"ops\"}");
+		Map<String, Object> patch = Collections.<String, Object>singletonMap("owner", "ops");
+
+		M2XBulkMetadata bulk = new M2XBulkMetadata(1);
+		bulk.fetchUnknown = true;
+		M2XBulkMetadata.Report report = bulk.apply(devices, patch);
+		assertThat(report.updated, is(2));
+		assertThat(report.skipped, is(1));
+
+		long requests = stub.requests();
+		report = bulk.apply(devices, patch);
+		assertThat(report.skipped, is(3));
+		assertThat(stub.requests(), is(requests));
+
+		// a failed field is written again next time
+		stub.failNext(1, 500);
+		patch = Collections.<String, Object>singletonMap("owner", "dev");
+		report = bulk.apply(devices, patch);
+		assertThat(report.success(), is(false));
+		assertThat(report.failures, is(Collections.singletonMap(devices.get(0).buildPath(null), 500)));
+		assertThat(report.updated, is(2));
+		report = bulk.apply(devices, patch);
+		assertThat(report.updated, is(1));
+		assertThat(report.skipped, is(2));
+		assertThat(devices.get(0).metadataField("owner").json().getString("value"), is("dev"));
+	}
+
+	@Test
+	public void commandBroadcastTest() throws Exception
+	{
+		List<String> ids = stub.createDevices(2500);
+		assertThat(M2XDeviceSet.distribution(client.distribution("1")).resolve(), is(ids));
+		assertThat(M2XDeviceSet.collection(client.collection("1")).resolve(), is(ids));
+		assertThat(M2XDeviceSet.search(client, null, null).resolve().size(), is(2500));
+
+		// chunks of 1000 devices are split in half until accepted
+		stub.maxCommandTargets = 300;
+		M2XCommandBroadcast broadcast = new M2XCommandBroadcast(client, 4);
+		broadcast.retryDelay = 1;
+		M2XCommandBroadcast.Report report = broadcast.send("reboot", null, M2XDeviceSet.ids(ids));
+		assertThat(report.success(), is(true));
+		assertThat(report.sentChunks, is(10));
+		assertThat(report.commandIds.size(), is(10));
+		assertThat(client.device(ids.get(2499)).commands(null).json().getJSONArray("commands").length(), is(1));
+
+		stub.maxCommandTargets = 0;
+		// a chunk whose response was lost is not sent again, one which could not connect is
+		final AtomicInteger lost = new AtomicInteger(0);
+		final AtomicInteger refused = new AtomicInteger(1);
+		M2XInterceptor failing = new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				if (refused.getAndDecrement() > 0)
+					throw new ConnectException("Connection refused");
+				M2XResponse response = chain.proceed(chain.request());
+				if (lost.getAndDecrement() > 0)
+					throw new SocketTimeoutException("Read timed out");
+				return response;
+			}
+		};
+		client.addInterceptor(failing);
+		long requests = stub.requests();
+		report = broadcast.send("update", null, M2XDeviceSet.ids(ids.subList(0, 1)));
+		assertThat(report.success(), is(true));
+		assertThat(report.retries, is(1));
+		lost.set(1);
+		report = broadcast.send("update", null, M2XDeviceSet.ids(ids.subList(0, 1)));
+		assertThat(report.success(), is(false));
+		assertThat(report.retries, is(0));
+		assertThat(stub.requests(), is(requests + 2));
+		client.removeInterceptor(failing);
+
+		client.addInterceptor(new M2XInterceptor()
+		{
+			public M2XResponse intercept(Chain chain) throws IOException
+			{
+				throw new IllegalStateException("Broken interceptor");
+			}
+		});
+		report = broadcast.send("reboot", null, M2XDeviceSet.ids(ids.subList(0, 1500)));
+		assertThat(report.success(), is(false));
+		assertThat(report.failedDevices.size(), is(1500));
+	}
+
+	@Test
+	public void commandDispatcherTest() throws Exception
+	{
+		final M2XDevice device = createDevice();
+		M2XCommandBroadcast broadcast = new M2XCommandBroadcast(client, 2);
+		broadcast.chunkSize = 1;
+		M2XCommandBroadcast.Report report = broadcast.send("reboot", null, M2XDeviceSet.ids(device.deviceId));
+		assertThat(report.success(), is(true));
+		broadcast.send("shutdown", new JSONObject().put("delay", 5), M2XDeviceSet.ids(device.deviceId));
+
+		final List<String> handled = new ArrayList<String>();
+		M2XCommandDispatcher dispatcher = new M2XCommandDispatcher(new M2XCommandDispatcher.Handler()
+		{
+			public M2XCommandDispatcher.Ack handle(M2XDevice target, JSONObject command)
+			{
+				handled.add(command.getString("name"));
+				return command.getString("name").equals("reboot")
+					? M2XCommandDispatcher.Ack.process(null)
+					: M2XCommandDispatcher.Ack.reject("{\"reason\":\"busy\"}");
+			}
+		}, 2);
+		assertThat(dispatcher.fetch(device, null), is(2));
+		assertThat(dispatcher.awaitTermination(10, TimeUnit.SECONDS), is(true));
+		assertThat(handled, contains("reboot", "shutdown"));
+		assertThat(dispatcher.acknowledged(), is(2L));
+
+		JSONObject commands = device.commands(null).json();
+		assertThat(commands.getJSONArray("commands").getJSONObject(0).getString("status"), is("rejected"));
+		assertThat(commands.getJSONArray("commands").getJSONObject(1).getString("status"), is("processed"));
+
+		// a command without id is reported and the lane keeps working
+		final List<String> failed = new ArrayList<String>();
+		broadcast.send("ping", null, M2XDeviceSet.ids(device.deviceId));
+		dispatcher = new M2XCommandDispatcher(new M2XCommandDispatcher.Handler()
+		{
+			public M2XCommandDispatcher.Ack handle(M2XDevice target, JSONObject command)
+			{
+				return command.getString("status").equals("sent") ? M2XCommandDispatcher.Ack.process(null) : null;
+			}
+		}, 1);
+		dispatcher.listener = new M2XCommandDispatcher.Listener()
+		{
+			public synchronized void ackFailed(M2XDevice target, String commandId, M2XResponse response, Exception error)
+			{
+				failed.add(commandId + " " + error.getMessage());
+			}
+		};
+		dispatcher.submit(device, new JSONObject().put("name", "broken").put("status", "sent"));
+		assertThat(dispatcher.fetch(device, null), is(3));
+		assertThat(dispatcher.awaitTermination(10, TimeUnit.SECONDS), is(true));
+		assertThat(failed, contains("null Command without id"));
+		assertThat(dispatcher.acknowledged(), is(1L));
+		try
+		{
+			dispatcher.submit(device, new JSONObject().put("id", "1"));
+			fail("Command queued after shutdown");
+		}
+		catch (IllegalStateException ex)
+		{
+			assertThat(dispatcher.submitted(), is(4L));
+		}
+
+		// acknowledgements still pending at the timeout are abandoned and their threads stopped
+		dispatcher = new M2XCommandDispatcher(new M2XCommandDispatcher.Handler()
+		{
+			public M2XCommandDispatcher.Ack handle(M2XDevice target, JSONObject command)
+			{
+				return M2XCommandDispatcher.Ack.process(null);
+			}
+		}, 1);
+		stub.latency = 300;
+		dispatcher.submit(device, new JSONObject().put("id", "1"));
+		assertThat(dispatcher.awaitTermination(50, TimeUnit.MILLISECONDS), is(false));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (ackThreadsAlive() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertThat(ackThreadsAlive(), is(false));
+	}
+
+	private static boolean ackThreadsAlive()
+	{
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if (thread.getName().startsWith("m2x-command-ack"))
+				return true;
+		}
+		return false;
+	}
+}
@@ -1,5 +1,6 @@
 package com.att.m2x.java;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -7,6 +8,9 @@ import org.junit.BeforeClass;
 import java.util.Date;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public abstract class M2XTestBase
 {
@@ -15,6 +19,7 @@ public abstract class M2XTestBase
 	protected M2XClient client;
 	protected String testId;
 	protected Date now;
+	protected M2XJobWatcher watcher;
 
 	@BeforeClass
 	public static void classInit()
@@ -42,5 +47,34 @@ public abstract class M2XTestBase
 		UUID id = UUID.randomUUID();
 		this.testId = String.format("%1$X%2$X", id.getMostSignificantBits(), id.getLeastSignificantBits());
 		this.now = new Date();
+		this.watcher = new M2XJobWatcher(this.client);
+	}
+
+	@After
+	public void watcherCleanup()
+	{
+		this.watcher.shutdown();
+	}
+
+	/**
+	 * Waits for a write accepted for asynchronous processing to become visible.
+	 *
+	 * @param condition the condition met once the write is visible
+	 * @return the response meeting the condition
+	 */
+	protected M2XResponse await(M2XJobWatcher.Condition condition) throws InterruptedException
+	{
+		try
+		{
+			return this.watcher.await(condition, 1000).get(30, TimeUnit.SECONDS);
+		}
+		catch (ExecutionException ex)
+		{
+			throw new AssertionError(ex.getCause());
+		}
+		catch (TimeoutException ex)
+		{
+			throw new AssertionError("Condition not met within 30 seconds");
+		}
 	}
 }